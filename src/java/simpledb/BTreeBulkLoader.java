@@ -0,0 +1,331 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom up from tuples that arrive sorted
+ * on the key field, instead of inserting them one at a time with
+ * BTreeFile.insertTuple. Leaf pages are filled left to right up to the fill
+ * factor and written as soon as they are complete, and the internal levels
+ * above them are built as the leaves go by: each level keeps only the page
+ * it is currently filling, so the loader holds one page per level in memory
+ * and never rereads a page it has written.
+ * <p>
+ * With a fill factor of 1 the pages are packed full, which is what a
+ * read-mostly index wants; a lower fill factor leaves room on every page
+ * for later inserts before they have to split. If the last leaf ends up
+ * less than half full, it and its left sibling share their tuples evenly;
+ * the last page of an internal level may hold fewer entries than the rest.
+ * <p>
+ * The loader writes straight to the file and is not logged, so it may only
+ * be used to build a new, empty BTreeFile that no transaction is using yet.
+ * Add the tuples, then call finish to write the remaining pages and the
+ * root pointer page.
+ */
+public class BTreeBulkLoader {
+
+	/** Default fraction of each page to fill. */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** A leaf page being filled. */
+	private static class Leaf {
+		final BTreePageId id;
+		BTreePageId parent, leftSibling, rightSibling;
+		final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+
+		Leaf(BTreePageId id) {
+			this.id = id;
+		}
+	}
+
+	/** An internal page being filled; keys.get(i) separates children i and i+1. */
+	private static class Internal {
+		final BTreePageId id;
+		BTreePageId parent;
+		final ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+		final ArrayList<Field> keys = new ArrayList<Field>();
+
+		Internal(BTreePageId id) {
+			this.id = id;
+		}
+	}
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final Type[] typeAr;
+	private final int keyField;
+	private final int leafTuples;
+	private final int minLeafTuples;
+	private final int internalEntries;
+	private int nextPageNo = 1;
+
+	// the leaf being filled, and the complete one before it, which is held
+	// back so that the last leaf can borrow tuples from it
+	private Leaf current;
+	private Leaf previous;
+	// the internal page being filled at each level; levels.get(0) holds leaves
+	private final ArrayList<Internal> levels = new ArrayList<Internal>();
+	private final HashSet<PageId> written = new HashSet<PageId>();
+	private Field lastKey;
+	private long tuples;
+	private boolean finished;
+
+	/**
+	 * Creates a loader that fills pages completely.
+	 *
+	 * @see #BTreeBulkLoader(BTreeFile, double)
+	 */
+	public BTreeBulkLoader(BTreeFile bf) throws DbException {
+		this(bf, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Creates a loader that builds the tree in the specified file.
+	 *
+	 * @param bf - the BTreeFile to build; it must be empty and in the catalog
+	 * @param fillFactor - the fraction of each page's tuples or entries to use,
+	 *            between 0.5 and 1
+	 * @throws DbException if the file is not empty
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor) throws DbException {
+		if(!(fillFactor >= 0.5 && fillFactor <= 1.0)) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if(bf.numPages() != 0 || bf.getFile().length() != 0) {
+			throw new DbException("bulk loading is only supported for empty B+ tree files");
+		}
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.keyField = bf.keyField();
+		this.typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		int maxTuples, maxEntries;
+		try {
+			byte[] empty = BTreePage.createEmptyPageData();
+			maxTuples = new BTreeLeafPage(newPageId(BTreePageId.LEAF), empty, keyField).getMaxTuples();
+			maxEntries = new BTreeInternalPage(newPageId(BTreePageId.INTERNAL), empty, keyField).getMaxEntries();
+			nextPageNo = 1;
+		} catch (IOException e) {
+			// parsing an empty page; this really shouldn't happen
+			throw new RuntimeException(e);
+		}
+		this.leafTuples = Math.max(1, (int) (maxTuples * fillFactor));
+		this.minLeafTuples = Math.min(leafTuples, maxTuples / 2);
+		this.internalEntries = Math.max(2, (int) (maxEntries * fillFactor));
+	}
+
+	/**
+	 * Add a tuple to the tree.
+	 *
+	 * @throws DbException if the tuple does not match the file, or its key is
+	 *         less than the key of the tuple added before it
+	 */
+	public void add(Tuple t) throws DbException, IOException {
+		if(finished) {
+			throw new DbException("bulk load already finished");
+		}
+		if(!td.equals(t.getTupleDesc())) {
+			throw new DbException("tupleDesc is mismatch");
+		}
+		Field key = t.getField(keyField);
+		if(lastKey != null && key.compare(Op.LESS_THAN, lastKey)) {
+			throw new DbException("tuples are not sorted on the key field");
+		}
+		lastKey = key;
+
+		if(current == null) {
+			current = new Leaf(newPageId(BTreePageId.LEAF));
+		}
+		else if(current.tuples.size() == leafTuples) {
+			Leaf next = new Leaf(newPageId(BTreePageId.LEAF));
+			next.leftSibling = current.id;
+			current.rightSibling = next.id;
+			if(current.parent == null) {
+				current.parent = newLevel(current.id);
+			}
+			next.parent = addChild(0, next.id, key);
+			if(previous != null) {
+				writeLeaf(previous);
+			}
+			previous = current;
+			current = next;
+		}
+		current.tuples.add(t);
+		tuples++;
+	}
+
+	/**
+	 * Add every tuple returned by an iterator, which must return them sorted
+	 * on the key field (an OrderBy, for example). The iterator is opened and
+	 * closed here.
+	 *
+	 * @return the number of tuples added
+	 */
+	public long addAll(DbIterator sorted)
+			throws DbException, TransactionAbortedException, IOException {
+		long count = 0;
+		sorted.open();
+		try {
+			while(sorted.hasNext()) {
+				add(sorted.next());
+				count++;
+			}
+		} finally {
+			sorted.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a new page id; pages are numbered in the order they are started.
+	 */
+	private BTreePageId newPageId(int pgcateg) {
+		return new BTreePageId(bf.getId(), nextPageNo++, pgcateg);
+	}
+
+	/**
+	 * Start a new top level whose only child so far is the specified page.
+	 *
+	 * @return the id of the new internal page
+	 */
+	private BTreePageId newLevel(BTreePageId child) {
+		Internal node = new Internal(newPageId(BTreePageId.INTERNAL));
+		node.children.add(child);
+		levels.add(node);
+		return node.id;
+	}
+
+	/**
+	 * Add a child to the internal page being filled at the specified level,
+	 * with the key that separates it from the child before it. If that page
+	 * is full it is written out, and the child starts a new page whose
+	 * separator is pushed up to the next level.
+	 *
+	 * @param level - the level of the internal page (0 is directly above the leaves)
+	 * @return the id of the child's parent
+	 */
+	private BTreePageId addChild(int level, BTreePageId child, Field key)
+			throws DbException, IOException {
+		Internal node = levels.get(level);
+		if(node.keys.size() < internalEntries) {
+			node.keys.add(key);
+			node.children.add(child);
+			return node.id;
+		}
+		Internal next = new Internal(newPageId(BTreePageId.INTERNAL));
+		next.children.add(child);
+		if(node.parent == null) {
+			node.parent = newLevel(node.id);
+		}
+		next.parent = addChild(level + 1, next.id, key);
+		writeInternal(node, level);
+		levels.set(level, next);
+		return next.id;
+	}
+
+	/**
+	 * Move tuples from the second to last leaf to the last one if the last
+	 * one is less than half full, and update the key that separates them.
+	 */
+	private void balanceLastLeaf() {
+		if(previous == null || current.tuples.size() >= minLeafTuples) {
+			return;
+		}
+		int move = (previous.tuples.size() + current.tuples.size()) / 2 - current.tuples.size();
+		List<Tuple> moved = previous.tuples.subList(previous.tuples.size() - move, previous.tuples.size());
+		current.tuples.addAll(0, moved);
+		moved.clear();
+
+		// the separator is in the lowest ancestor where the last leaf is not
+		// the first child; all of the last leaf's ancestors are still open
+		for(Internal node : levels) {
+			if(!node.keys.isEmpty()) {
+				node.keys.set(node.keys.size() - 1, current.tuples.get(0).getField(keyField));
+				break;
+			}
+		}
+	}
+
+	private BTreePageId parentOrRoot(BTreePageId parent) {
+		return parent != null ? parent : BTreeRootPtrPage.getId(bf.getId());
+	}
+
+	private void writeLeaf(Leaf leaf) throws DbException, IOException {
+		byte[] data = BTreeFileEncoder.convertToLeafPage(leaf.tuples, BufferPool.getPageSize(),
+				typeAr.length, typeAr, keyField);
+		BTreeLeafPage page = new BTreeLeafPage(leaf.id, data, keyField);
+		page.setParentId(parentOrRoot(leaf.parent));
+		page.setLeftSiblingId(leaf.leftSibling);
+		page.setRightSiblingId(leaf.rightSibling);
+		write(page);
+	}
+
+	private void writeInternal(Internal node, int level) throws DbException, IOException {
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		for(int i = 0; i < node.keys.size(); i++) {
+			entries.add(new BTreeEntry(node.keys.get(i), node.children.get(i), node.children.get(i + 1)));
+		}
+		int childPageCategory = (level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		byte[] data = BTreeFileEncoder.convertToInternalPage(entries, BufferPool.getPageSize(),
+				td.getFieldType(keyField), childPageCategory);
+		BTreeInternalPage page = new BTreeInternalPage(node.id, data, keyField);
+		page.setParentId(parentOrRoot(node.parent));
+		write(page);
+	}
+
+	private void write(Page page) throws IOException {
+		bf.writePage(page);
+		written.add(page.getId());
+	}
+
+	/**
+	 * Write the pages still being filled and then the root pointer page,
+	 * and force the file to disk. If no tuples were added the file is left
+	 * empty, and BTreeFile creates an empty tree on first use.
+	 *
+	 * @return the number of tuples loaded
+	 */
+	public long finish() throws DbException, IOException {
+		if(finished) {
+			return tuples;
+		}
+		finished = true;
+		if(current == null) {
+			return tuples;
+		}
+		balanceLastLeaf();
+		if(previous != null) {
+			writeLeaf(previous);
+		}
+		writeLeaf(current);
+		for(int level = 0; level < levels.size(); level++) {
+			writeInternal(levels.get(level), level);
+		}
+
+		BTreePageId root = levels.isEmpty() ? current.id : levels.get(levels.size() - 1).id;
+		byte[] rootPtrBytes = BTreeFileEncoder.convertToRootPtrPage(root.pageNumber(), root.pgcateg(), 0);
+		write(new BTreeRootPtrPage(BTreeRootPtrPage.getId(bf.getId()), rootPtrBytes));
+		FileChannelManager.force(bf.getFile());
+
+		// the file was empty, but make sure no empty copies of its pages are cached
+		for(PageId pid : written) {
+			Database.getBufferPool().invalidatePage(pid);
+		}
+		return tuples;
+	}
+
+	/** Returns the number of tuples added so far. */
+	public long getTupleCount() {
+		return tuples;
+	}
+
+	/** Returns the number of pages written so far, including the root pointer page. */
+	public int getPagesWritten() {
+		return written.size();
+	}
+}
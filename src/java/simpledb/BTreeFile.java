@@ -24,6 +24,11 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	// highest page number in use, and the number of pages the backing file
+	// has room for; pages in between are preallocated and empty
+	private int numPages;
+	private int allocatedPages;
+	private int extentPages = HeapFile.DEFAULT_EXTENT_PAGES;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -38,6 +43,8 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.numPages = pagesOnDisk(f.length());
+		this.allocatedPages = numPages;
 	}
 
 	/**
@@ -78,13 +85,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = FileChannelManager.read(f, pageBuf, 0);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -98,12 +103,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = FileChannelManager.read(f, pageBuf, pageOffset(id.pageNumber()));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -112,29 +112,31 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return createPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
+		}
+	}
+
+	/**
+	 * Decode a page of this file from its bytes.
+	 *
+	 * @param id - the id of the page
+	 * @param data - the page's bytes, as written by writePage
+	 */
+	Page createPage(BTreePageId id, byte[] data) throws IOException {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, data);
+		}
+		else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
 		}
 	}
 
@@ -148,23 +150,59 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			FileChannelManager.write(f, data, 0);
 		} else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			FileChannelManager.write(f, data, pageOffset(page.getId().pageNumber()));
+			synchronized(this) {
+				// e.g. BTreeFileEncoder appends pages directly
+				numPages = Math.max(numPages, id.pageNumber());
+				allocatedPages = Math.max(allocatedPages, id.pageNumber());
+			}
 		}
 	}
 
+	/**
+	 * Returns the byte offset of the given (non root pointer) page in the file.
+	 * Page numbers start at 1, directly after the root pointer page.
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
-	public int numPages() {
+	public synchronized int numPages() {
+		return numPages;
+	}
+
+	/**
+	 * Returns the number of (non root pointer) pages a file of the given
+	 * length holds.
+	 */
+	private static int pagesOnDisk(long length) {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		return (int) Math.max(0, (length - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Returns the number of pages the backing file grows by when a new page
+	 * is needed and no page is free.
+	 */
+	public synchronized int getExtentPages() {
+		return extentPages;
+	}
+
+	/**
+	 * Sets the number of pages the backing file grows by at a time. The
+	 * preallocated pages are empty, and count as pages of the file once it
+	 * is reopened.
+	 */
+	public synchronized void setExtentPages(int extentPages) {
+		if(extentPages < 1)
+			throw new IllegalArgumentException("extent must be at least one page");
+		this.extentPages = extentPages;
 	}
 
 	/**
@@ -1043,13 +1081,12 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				FileChannelManager.write(f, emptyRootPtrData, 0);
+				FileChannelManager.write(f, emptyLeafData, emptyRootPtrData.length);
+				numPages = 1;
+				allocatedPages = 1;
 			}
 		}
 
@@ -1104,13 +1141,19 @@ public class BTreeFile implements DbFile {
 		// or there are no free slots
 		if(headerId == null) {
 			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				// take the next page, growing the file by an extent of empty
+				// pages in one write if it has no room for it
+				emptyPageNo = ++numPages;
+				if(emptyPageNo > allocatedPages) {
+					int onDisk = pagesOnDisk(FileChannelManager.size(f));
+					if(emptyPageNo > onDisk) {
+						int end = Math.max(emptyPageNo, onDisk + extentPages);
+						byte[] extent = new byte[(end - onDisk) * BufferPool.getPageSize()];
+						FileChannelManager.write(f, extent, pageOffset(onDisk + 1));
+						onDisk = end;
+					}
+					allocatedPages = onDisk;
+				}
 			}
 		}
 
@@ -1119,8 +1162,8 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and
-	 * returns a clean copy locked with read-write permission
+	 * and creates a new page if none are available.  It installs an empty copy of the page in
+	 * the cache, without reading or writing the disk, locked with read-write permission
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1139,17 +1182,11 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
-
-		// make sure the page is not in the buffer pool	or in the local cache
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
-
-		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+		// replace any old copy in the buffer pool and in the local cache
+		Page newPage = Database.getBufferPool().newPage(tid,
+				createPage(newPageId, BTreePage.createEmptyPageData()));
+		dirtypages.put(newPageId, newPage);
+		return newPage;
 	}
 
 	/**
@@ -13,6 +13,7 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long pageLSN;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -262,6 +263,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getPageLSN() {
+		return pageLSN;
+	}
+
+	public void setPageLSN(long lsn) {
+		pageLSN = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -14,6 +14,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long pageLSN;
 
 	private BTreePageId pid;
 	private DataInputStream dis;
@@ -138,6 +139,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getPageLSN() {
+		return pageLSN;
+	}
+
+	public void setPageLSN(long lsn) {
+		pageLSN = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
   	public BTreeRootPtrPage getBeforeImage(){
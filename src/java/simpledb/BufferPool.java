@@ -1,11 +1,22 @@
 package simpledb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -15,8 +26,28 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Read-only transactions can instead read heap pages as of a snapshot
+ * taken when they start, without locking them, so they never wait for
+ * writers nor writers for them. See {@link #beginSnapshot}.
  */
 public class BufferPool {
+    /**
+     * How finely heap files lock what inserts and deletes change.
+     * <p>
+     * Under PAGE locking, changing a tuple locks its page exclusively until
+     * the transaction completes. Under RECORD locking, heap files lock the
+     * record they change exclusively and its page only IX, so transactions
+     * changing different rows of a page run at once; each holds the page's
+     * latch (its monitor) only while it changes the page. Reading a page
+     * still locks it shared, which excludes IX, so readers never see rows
+     * of transactions that have not committed. A page with such rows is
+     * never evicted, and each commit writes it with only committed rows.
+     */
+    public enum LockGranularity {
+        PAGE, RECORD
+    }
+
     /** Bytes per page, including header. */
     public static final int PAGE_SIZE = 4096;
 
@@ -32,17 +63,89 @@ public class BufferPool {
 
     private final LockManager lockManager;
     private final Map<TransactionId, Set<PageId>> txUsedPage;
+    private volatile LockGranularity lockGranularity = LockGranularity.PAGE;
+    private final VersionStore versions = new VersionStore();
+
+    private final ReplacementPolicy policy;
+    private final PageFrameArena offHeapFrames;
+    private final AtomicLong hits;
+    private final AtomicLong offHeapHits;
+    private final AtomicLong misses;
+    private final AtomicLong prefetched;
+
+    private final ThreadPoolExecutor ioExecutor;
+    private final Map<PageId, CountDownLatch> pendingReads;
+    // committed without waiting for the log, and not written since
+    private final Set<PageId> unwrittenPages;
+    // pages the page cleaner is writing copies of; guarded by itself
+    private final Set<PageId> cleaning = new HashSet<>();
+
+    // held shared while insertTuple/deleteTuple modify pages, exclusively by the page cleaner
+    private final ReentrantReadWriteLock updateLatch;
+    private volatile PageCleaner pageCleaner;
+    private final Object cleanerLock = new Object();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to pick eviction victims.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy deciding which page to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, 0);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages decoded pages on the
+     * Java heap, backed by an off-heap arena of numOffHeapFrames page frames.
+     * Clean heap pages evicted from the pool are kept in the arena, so a
+     * large cache does not have to consist of live Java objects.
+     *
+     * @param numPages maximum number of pages kept decoded on the heap.
+     * @param policy the replacement policy deciding which page to evict
+     * @param numOffHeapFrames number of direct page frames to pre-allocate;
+     *            0 disables the off-heap level
+     * @see PageFrameArena
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy, int numOffHeapFrames) {
         this.numPages = numPages;
+        this.policy = policy;
+        this.offHeapFrames = numOffHeapFrames > 0 ? new PageFrameArena(numOffHeapFrames) : null;
         pid2page = new ConcurrentHashMap<>();
         lockManager = new LockManager();
         txUsedPage = new ConcurrentHashMap<>();
+        hits = new AtomicLong(0);
+        offHeapHits = new AtomicLong(0);
+        misses = new AtomicLong(0);
+        prefetched = new AtomicLong(0);
+        pendingReads = new ConcurrentHashMap<>();
+        unwrittenPages = ConcurrentHashMap.newKeySet();
+        updateLatch = new ReentrantReadWriteLock();
+        ioExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BufferPool-io");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numPages;
     }
 
     public static int getPageSize() {
@@ -59,6 +162,41 @@ public class BufferPool {
     	BufferPool.pageSize = PAGE_SIZE;
     }
 
+    /** @return the number of getPage calls served from the cache */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of getPage calls served from the off-heap frames */
+    public long getOffHeapHitCount() {
+        return offHeapHits.get();
+    }
+
+    /** @return the number of getPage calls that had to read from disk */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the number of pages read into the pool by read-ahead */
+    public long getPrefetchCount() {
+        return prefetched.get();
+    }
+
+    /** @return the fraction of getPage calls served from the cache */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Reset the hit and miss counters, e.g. between benchmark runs. */
+    public void resetStats() {
+        hits.set(0);
+        offHeapHits.set(0);
+        misses.set(0);
+        prefetched.set(0);
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -76,22 +214,509 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, LockMode.of(perm));
+    }
 
+    /**
+     * Retrieve the specified page, locked in the specified mode, as
+     * {@link #getPage(TransactionId, PageId, Permissions)} does. HeapFile
+     * asks for IX under record-level locking.
+     * <p>
+     * A transaction reading from a snapshot gets heap pages as of its
+     * snapshot, without locking them; it may not ask for a page to write.
+     */
+    public Page getPage(TransactionId tid, PageId pid, LockMode mode)
+        throws TransactionAbortedException, DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null) {
+            if (mode.isWrite())
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            if (pid instanceof HeapPageId)
+                return snapshotPage(pid, snapshot);
+        }
+        lockPage(tid, pid, mode);
+        Page page = fetchPage(pid);
+        if (mode.isWrite())
+            writeUnwrittenPage(pid);
+        return page;
+    }
 
-        lockManager.grantWriteLock(tid, pid);
-        if (!txUsedPage.containsKey(tid))
-            txUsedPage.put(tid, new HashSet<>());
-        txUsedPage.get(tid).add(pid);
+    /**
+     * Write a page that a transaction committed without waiting for the
+     * log left in the pool, before another transaction changes it, so that
+     * what is on disk is again the page as last committed: aborting the
+     * other transaction may discard the cached copy.
+     */
+    private void writeUnwrittenPage(PageId pid) throws DbException {
+        if (!unwrittenPages.contains(pid))
+            return;
+        synchronized (this) {
+            Page page = pid2page.get(pid);
+            try {
+                if (page != null && page.isDirty() != null) {
+                    // WAL: only the log records of this page need to be on disk
+                    Database.getLogFile().forceTo(page.getPageLSN());
+                    writeLoggedPage(pid, page);
+                }
+            } catch (IOException e) {
+                throw new DbException("could not write page " + pid.pageNumber());
+            }
+            unwrittenPages.remove(pid);
+        }
+    }
 
+    /**
+     * Returns a copy of a heap page as of the specified snapshot, made from
+     * its committed image if nothing committed since changed it, or from
+     * the image kept in the version store otherwise. The copy is not cached.
+     */
+    private Page snapshotPage(PageId pid, long snapshot) throws DbException {
+        HeapPage page = (HeapPage) fetchPage(pid);
+        byte[] image;
+        synchronized (page) {
+            image = versions.imageAsOf(pid, snapshot);
+            if (image == null)
+                image = page.beforeImageData();
+        }
+        try {
+            return page.pageOf(image);
+        } catch (IOException e) {
+            throw new DbException("could not decode snapshot of page " + pid.pageNumber());
+        }
+    }
 
-        if (!pid2page.containsKey(pid)) {
-            if (pid2page.size() == numPages) {
+    /** Returns a page from the cache, reading it in if it is not there, without locking it. */
+    private Page fetchPage(PageId pid) throws DbException {
+        while (true) {
+            Page page = pid2page.get(pid);
+            if (page != null) {
+                hits.incrementAndGet();
+                policy.pageAccessed(pid);
+                return page;
+            }
+            // claim the read, or wait for whoever (e.g. read-ahead) is reading it
+            CountDownLatch reading = new CountDownLatch(1);
+            CountDownLatch pending = pendingReads.putIfAbsent(pid, reading);
+            if (pending != null) {
+                awaitRead(pending);
+                continue;
+            }
+            try {
+                if (pid2page.containsKey(pid))
+                    continue;
+                if (pid2page.size() >= numPages) {
+                    evictPage();
+                }
+                page = readOffHeapPage(pid);
+                if (page != null) {
+                    offHeapHits.incrementAndGet();
+                } else {
+                    misses.incrementAndGet();
+                    page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+                }
+                cachePage(page);
+                return page;
+            } finally {
+                pendingReads.remove(pid);
+                reading.countDown();
+            }
+        }
+    }
+
+    /**
+     * Install a page that a file has just created, locked for the specified
+     * transaction with READ_WRITE permission, without reading it from disk.
+     * Any copy of the page already in the buffer pool is replaced, as a
+     * new page never holds anything a caller needs to see.
+     *
+     * @param tid the ID of the transaction creating the page
+     * @param page the new page
+     * @return page, now cached
+     * @see HeapFile#insertTuple
+     */
+    public Page newPage(TransactionId tid, Page page)
+        throws TransactionAbortedException, DbException {
+        return newPage(tid, page, LockMode.X);
+    }
+
+    /**
+     * Install a new page, as {@link #newPage(TransactionId, Page)} does,
+     * locked in the specified mode.
+     */
+    public Page newPage(TransactionId tid, Page page, LockMode mode)
+        throws TransactionAbortedException, DbException {
+        PageId pid = page.getId();
+        lockPage(tid, pid, mode);
+
+        // wait out any read of the old copy, so it cannot replace ours
+        CountDownLatch installing = new CountDownLatch(1);
+        CountDownLatch pending;
+        while ((pending = pendingReads.putIfAbsent(pid, installing)) != null)
+            awaitRead(pending);
+        try {
+            if (offHeapFrames != null) {
+                synchronized (offHeapFrames) {
+                    offHeapFrames.remove(pid);
+                }
+            }
+            if (!pid2page.containsKey(pid) && pid2page.size() >= numPages)
                 evictPage();
+            cachePage(page);
+            return page;
+        } finally {
+            pendingReads.remove(pid);
+            installing.countDown();
+        }
+    }
+
+    /**
+     * Lock a page for a transaction in the specified mode, under the
+     * matching lock on its table, and remember that it used the page if it
+     * may change it. Pages that are only read need nothing done when the
+     * transaction completes.
+     */
+    private void lockPage(TransactionId tid, PageId pid, LockMode mode)
+        throws TransactionAbortedException {
+        lockManager.lockPage(tid, pid, mode);
+        if (mode.isWrite()) {
+            // threads of one transaction may lock pages at the same time
+            txUsedPage.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        }
+    }
+
+    /**
+     * Lock a whole table for a transaction until it completes. Pages of
+     * the table the lock covers are then read (S, SIX) or written (X)
+     * without locking them one by one. May block.
+     *
+     * @see SeqScan
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+        throws TransactionAbortedException {
+        // snapshot readers lock nothing
+        if (!mode.isWrite() && versions.snapshotOf(tid) != null)
+            return;
+        lockManager.grantLock(tid, LockManager.tableKey(tableId), mode);
+    }
+
+    /**
+     * Lock a whole table like {@link #lockTable}, but only if no other
+     * transaction holds a conflicting lock on it; never blocks.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryLockTable(TransactionId tid, int tableId, LockMode mode) {
+        if (!mode.isWrite() && versions.snapshotOf(tid) != null)
+            return true;
+        return lockManager.tryLock(tid, LockManager.tableKey(tableId), mode);
+    }
+
+    /** Returns true if the specified transaction holds a lock on the whole table */
+    public boolean holdsTableLock(TransactionId tid, int tableId) {
+        return lockManager.checkHoldLock(tid, LockManager.tableKey(tableId));
+    }
+
+    /**
+     * Start a snapshot for a read-only transaction. Until it completes, the
+     * transaction reads heap pages as they were committed when it started,
+     * without locking them, and may not write. Must be called before the
+     * transaction reads anything.
+     *
+     * @see Transaction#setReadOnly
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** Returns true if the specified transaction reads from a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.snapshotOf(tid) != null;
+    }
+
+    /** @return the number of page images kept for snapshot readers */
+    public int getVersionCount() {
+        return versions.size();
+    }
+
+    /**
+     * Sets how many page and record locks a transaction may hold in one
+     * table before they are escalated to a table lock; 0 disables
+     * escalation.
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    /** @return the number of times a transaction's page locks were escalated to a table lock */
+    public long getLockEscalationCount() {
+        return lockManager.getEscalationCount();
+    }
+
+    /** @return the number of tables, pages and records locked or waited for */
+    public int getLockTableSize() {
+        return lockManager.getLockTableSize();
+    }
+
+    private static void awaitRead(CountDownLatch pending) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pending.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Decode a page held in the off-heap frames and release its frame; the
+     * page is about to be cached on the heap, which becomes the only copy.
+     *
+     * @return the page, or null if it is not held off-heap
+     */
+    private Page readOffHeapPage(PageId pid) throws DbException {
+        if (offHeapFrames == null || !(pid instanceof HeapPageId))
+            return null;
+        synchronized (offHeapFrames) {
+            ByteBuffer frame = offHeapFrames.get(pid);
+            if (frame == null)
+                return null;
+            try {
+                DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+                if (!(file instanceof HeapFile))
+                    return null;
+                return ((HeapFile) file).createPage((HeapPageId) pid, HeapPage.copyOf(frame));
+            } catch (IOException e) {
+                throw new DbException("could not decode off-heap frame of page " + pid.pageNumber());
+            } finally {
+                offHeapFrames.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * Install a page in the cache (replacing any cached copy) and let the
+     * replacement policy know about it.
+     */
+    private void cachePage(Page page) {
+        PageId pid = page.getId();
+        if (pid2page.put(pid, page) == null)
+            policy.pageAdded(pid);
+        else
+            policy.pageAccessed(pid);
+    }
+
+    /** Drop a page from the cache without writing it. */
+    private void uncachePage(PageId pid) {
+        if (pid2page.remove(pid) != null)
+            policy.pageRemoved(pid);
+    }
+
+    /**
+     * Run a read-ahead task on the buffer pool's background I/O thread.
+     *
+     * @see SequentialPrefetcher
+     */
+    public void submitReadAhead(Runnable task) {
+        ioExecutor.execute(task);
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of its use, without acquiring
+     * any lock on behalf of a transaction. The page is only read if it is not
+     * already cached, and only if a frame is free or the replacement policy's
+     * victim is clean: read-ahead never writes dirty pages.
+     * <p>
+     * Like a getPage miss, the read is done holding only the page's pending
+     * read latch, which getPage waits on, so it does not hold up other
+     * users of the pool.
+     *
+     * @param pid the id of the page to read
+     * @return true if the page was read into the pool
+     */
+    public boolean prefetchPage(PageId pid) {
+        if (pid2page.containsKey(pid))
+            return false;
+        CountDownLatch reading = new CountDownLatch(1);
+        if (pendingReads.putIfAbsent(pid, reading) != null)
+            return false;
+        try {
+            if (pid2page.containsKey(pid) || !freeCleanFrame())
+                return false;
+            Page page;
+            try {
+                page = readOffHeapPage(pid);
+            } catch (DbException e) {
+                page = null;
+            }
+            if (page == null)
+                page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+            if (page == null)
+                return false;
+            synchronized (this) {
+                // the frame freed above may have been taken during the read
+                if (pid2page.containsKey(pid) || !freeCleanFrame())
+                    return false;
+                cachePage(page);
             }
-            pid2page.put(pid, Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid));
+            prefetched.incrementAndGet();
+            return true;
+        } finally {
+            pendingReads.remove(pid);
+            reading.countDown();
+        }
+    }
+
+    /**
+     * Make sure a frame is free for a page read ahead, dropping the
+     * replacement policy's victim if the pool is full and it is clean.
+     *
+     * @return false if the pool is full and its victim is dirty
+     */
+    private synchronized boolean freeCleanFrame() {
+        if (pid2page.size() < numPages)
+            return true;
+        PageId victim = policy.chooseVictim();
+        if (victim == null)
+            return false;
+        Page page = pid2page.get(victim);
+        if (page != null && page.isDirty() != null)
+            return false;
+        pid2page.remove(victim);
+        policy.pageRemoved(victim);
+        if (offHeapFrames != null && page instanceof HeapPage)
+            offHeapFrames.put(victim, page.getPageData());
+        return true;
+    }
+
+    /**
+     * Start a background page cleaner that keeps at least targetCleanFraction
+     * of this pool's frames clean. Replaces any cleaner already running.
+     *
+     * @param targetCleanFraction fraction of frames (0 to 1) that should be clean
+     * @param intervalMillis how often the cleaner checks the pool
+     * @return the started cleaner, which also reports write metrics
+     * @see PageCleaner
+     */
+    public PageCleaner startPageCleaner(double targetCleanFraction, long intervalMillis) {
+        synchronized (cleanerLock) {
+            stopPageCleaner();
+            pageCleaner = new PageCleaner(this, targetCleanFraction, intervalMillis);
+            pageCleaner.start();
+            return pageCleaner;
+        }
+    }
+
+    /** Stop the background page cleaner, if one is running. */
+    public void stopPageCleaner() {
+        synchronized (cleanerLock) {
+            if (pageCleaner != null) {
+                pageCleaner.shutdown();
+                pageCleaner = null;
+            }
+        }
+    }
+
+    /** @return the running page cleaner, or null */
+    public PageCleaner getPageCleaner() {
+        return pageCleaner;
+    }
+
+    /**
+     * The latch that insertTuple and deleteTuple hold shared while they
+     * modify pages. A background writer must hold it exclusively so that it
+     * never writes out (and marks clean) a page in the middle of an update.
+     */
+    ReentrantReadWriteLock getUpdateLatch() {
+        return updateLatch;
+    }
+
+    /**
+     * @return the pages currently cached in this pool that are dirty, and
+     * can be written; pages with rows of running transactions are not
+     */
+    List<Page> getDirtyPages() {
+        List<Page> dirty = new ArrayList<Page>();
+        for (Page page : pid2page.values()) {
+            if (page.isDirty() != null && !hasPendingRows(page))
+                dirty.add(page);
+        }
+        return dirty;
+    }
 
+    /**
+     * Claim a page for the page cleaner, which forced the log up to lsn
+     * and wrote a copy of it stamped with that LSN, to write the copy
+     * outside this pool's monitor. Only a page still cached, dirty and
+     * stamped with lsn is claimed: anything else was written or discarded
+     * since the copy was taken, which writing it would undo. Until
+     * endCleaning, writing or discarding the page waits for the copy to be
+     * written, so that neither overwrites the other.
+     *
+     * @return true if the page was claimed
+     */
+    synchronized boolean startCleaning(Page page, long lsn) {
+        PageId pid = page.getId();
+        if (pid2page.get(pid) != page || page.isDirty() == null || page.getPageLSN() != lsn)
+            return false;
+        synchronized (cleaning) {
+            cleaning.add(pid);
+        }
+        return true;
+    }
+
+    /** The page cleaner has written the pages it claimed with startCleaning. */
+    void endCleaning(Collection<PageId> pids) {
+        synchronized (cleaning) {
+            cleaning.removeAll(pids);
+            cleaning.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the page cleaner is not writing a copy of the specified
+     * page, before writing the page or reading it back from disk.
+     */
+    void awaitCleaning(PageId pid) {
+        boolean interrupted = false;
+        synchronized (cleaning) {
+            while (cleaning.contains(pid)) {
+                try {
+                    cleaning.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
         }
-        return pid2page.get(pid);
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static boolean hasPendingRows(Page page) {
+        return page instanceof HeapPage && ((HeapPage) page).hasPendingRows();
+    }
+
+    /**
+     * Sets how finely heap files lock the tuples inserts and deletes
+     * change. Should only be changed while no transaction is running.
+     */
+    public void setLockGranularity(LockGranularity granularity) {
+        this.lockGranularity = granularity;
+    }
+
+    public LockGranularity getLockGranularity() {
+        return lockGranularity;
+    }
+
+    /**
+     * Lock a record exclusively for a transaction until it completes. Used
+     * by HeapFile under record-level locking; may block.
+     */
+    void lockRecord(TransactionId tid, RecordId rid) throws TransactionAbortedException {
+        lockManager.lockRecord(tid, rid, LockMode.X);
     }
 
     /**
@@ -107,7 +732,9 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
         lockManager.releaseLock(tid, pid);
-        txUsedPage.get(tid).remove(pid);
+        Set<PageId> used = txUsedPage.get(tid);
+        if (used != null)
+            used.remove(pid);
     }
 
     /**
@@ -119,6 +746,24 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Sets how long a transaction may wait for a page lock before it is
+     * aborted, in ms; a fallback for waits the deadlock detector cannot see.
+     */
+    public void setLockWaitTimeout(long millis) {
+        lockManager.setLockWaitTimeout(millis);
+    }
+
+    /** @return the number of transactions aborted to break a deadlock */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /** @return the number of transactions aborted after waiting too long for a lock */
+    public long getLockTimeoutCount() {
+        return lockManager.getTimeoutCount();
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -126,6 +771,16 @@ public class BufferPool {
         return lockManager.checkHoldLock(tid, p);
     }
 
+    /** Return true if the specified transaction has a lock on the specified record */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        return lockManager.checkHoldLock(tid, rid);
+    }
+
+    /** Returns the mode a transaction holds a page or record in, or null */
+    public LockMode getLockMode(TransactionId tid, Object pidOrRid) {
+        return lockManager.getLockMode(tid, pidOrRid);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -135,10 +790,24 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        if (commit) {
+        if (commit)
             flushPages(tid);
+        endTransaction(tid, commit);
+    }
+
+    /**
+     * Finish a transaction whose pages flushPages has already written and
+     * whose commit or abort record is in the log: publish what a committed
+     * transaction changed to snapshots started later, or discard an aborted
+     * one's pages, and release its locks.
+     *
+     * @see Transaction#transactionComplete
+     */
+    void endTransaction(TransactionId tid, boolean commit) throws IOException {
+        if (commit) {
             Set<PageId> pageids = txUsedPage.get(tid);
             if (pageids != null) {
+                publishPages(tid, pageids);
                 for (PageId pageid : pageids) {
                     Page newPage = pid2page.get(pageid);
                     if (newPage != null) {
@@ -149,6 +818,7 @@ public class BufferPool {
         } else {
             discardPages(tid);
         }
+        versions.end(tid);
         lockManager.commitTX(tid);
         txUsedPage.remove(tid);
     }
@@ -171,11 +841,15 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         DbFile table = (DbFile) Database.getCatalog().getDbFile(tableId);
-        ArrayList<Page> affectedPages = table.insertTuple(tid, t);
-        for (Page newPage : affectedPages) {
-            newPage.markDirty(true, tid);
-            pid2page.remove(newPage.getId());
-            pid2page.put(newPage.getId(), newPage);
+        updateLatch.readLock().lock();
+        try {
+            ArrayList<Page> affectedPages = table.insertTuple(tid, t);
+            for (Page newPage : affectedPages) {
+                newPage.markDirty(true, tid);
+                cachePage(newPage);
+            }
+        } finally {
+            updateLatch.readLock().unlock();
         }
     }
 
@@ -196,16 +870,48 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile table = (DbFile) Database.getCatalog().getDbFile(tableId);
-        ArrayList<Page> affectedPage = table.deleteTuple(tid, t);
-        for (Page newPage : affectedPage) {
-            newPage.markDirty(true, tid);
-            pid2page.remove(newPage.getId());
-            pid2page.put(newPage.getId(), newPage);
+        updateLatch.readLock().lock();
+        try {
+            ArrayList<Page> affectedPage = table.deleteTuple(tid, t);
+            for (Page newPage : affectedPage) {
+                newPage.markDirty(true, tid);
+                cachePage(newPage);
+            }
+        } finally {
+            updateLatch.readLock().unlock();
         }
         // some code goes here
         // not necessary for proj1
     }
 
+    /**
+     * Remove a batch of tuples from the specified heap file. Tuples are
+     * grouped by page, so each page is fetched, locked and dirtied once.
+     * Will acquire a write lock on every affected page. May block if a lock
+     * cannot be acquired.
+     *
+     * @param tid the transaction deleting the tuples
+     * @param tableId the table the tuples belong to
+     * @param rids the record ids of the tuples to delete
+     * @see HeapFile#deleteTuples
+     */
+    public void deleteTuples(TransactionId tid, int tableId, Collection<RecordId> rids)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile table = Database.getCatalog().getDbFile(tableId);
+        if (!(table instanceof HeapFile))
+            throw new DbException("batched deletes are only supported on heap files");
+        updateLatch.readLock().lock();
+        try {
+            ArrayList<Page> affectedPages = ((HeapFile) table).deleteTuples(tid, rids);
+            for (Page newPage : affectedPages) {
+                newPage.markDirty(true, tid);
+                cachePage(newPage);
+            }
+        } finally {
+            updateLatch.readLock().unlock();
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -228,8 +934,26 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
 	// not necessary for proj1
-        pid2page.remove(pid);
-        pid2page.put(pid, Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid));
+        awaitCleaning(pid);
+        uncachePage(pid);
+        if (offHeapFrames != null)
+            offHeapFrames.remove(pid);
+        cachePage(Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid));
+    }
+
+    /**
+     * Drop a page from the buffer pool without writing it or reading it
+     * back, because the copy on disk was written around the buffer pool
+     * (see BulkLoader). The page must not be dirty.
+     */
+    public synchronized void invalidatePage(PageId pid) {
+        awaitCleaning(pid);
+        uncachePage(pid);
+        if (offHeapFrames != null) {
+            synchronized (offHeapFrames) {
+                offHeapFrames.remove(pid);
+            }
+        }
     }
 
     /**
@@ -237,46 +961,185 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
+        flushPage(pid, null);
+    }
+
+    /**
+     * Flushes a certain page to disk on behalf of a committing transaction,
+     * or of none. A heap page with rows that running transactions changed
+     * under record-level locking is only written when one of them commits,
+     * with the rows of the others left out; it stays dirty until they
+     * commit too.
+     */
+    private synchronized void flushPage(PageId pid, TransactionId committer) throws IOException {
+        Page image = logPage(pid, committer);
+        if (image != null) {
+            // WAL: only the log records of this page need to be on disk
+            Database.getLogFile().forceTo(image.getPageLSN());
+            writeLoggedPage(pid, image);
+        }
+    }
+
+    /**
+     * Append the log records for flushing a page, as flushPage does, to
+     * the log without forcing it, stamping the image with their LSN.
+     *
+     * @return the image of the page to write once the log is on disk, or
+     *         null if there is nothing to write
+     */
+    private Page logPage(PageId pid, TransactionId committer) throws IOException {
         Page page = pid2page.get(pid);
-        // append an update record to the log, with
-        // a before-image and after-image.
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
-
-            int tableId = ((PageId)pid).getTableId();
-            DbFile hf = (DbFile)Database.getCatalog().getDbFile(tableId);
-            hf.writePage(page);
-            page.markDirty(false, null);
+        if (page instanceof HeapPage) {
+            HeapPage hp = (HeapPage) page;
+            synchronized (hp) {
+                if (hp.hasPendingRows()) {
+                    if (committer == null || !hp.hasPendingRows(committer))
+                        return null;
+                    HeapPage image = hp.committedImage(committer);
+                    Database.getLogFile().logWrite(committer, hp.getBeforeImage(), image);
+                    // the log now describes the page as the image written
+                    hp.setLoggedImageData(image.loggedImageData());
+                    hp.setPageLSN(image.getPageLSN());
+                    return image;
+                }
+            }
+        }
+        // append the page's log records: slot-level for heap pages,
+        // otherwise an update record with a before-image and after-image.
+        TransactionId dirtier = page == null ? null : page.isDirty();
+        if (dirtier == null)
+            return null;
+        // the log already describes a page its committer left unwritten
+        if (unwrittenPages.contains(pid))
+            return page;
+        Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+        return page;
+    }
+
+    /** Write a page image returned by logPage; a cached page written whole is clean. */
+    private void writeLoggedPage(PageId pid, Page image) throws IOException {
+        awaitCleaning(pid);
+        Database.getCatalog().getDbFile(pid.getTableId()).writePage(image);
+        if (image == pid2page.get(pid)) {
+            image.markDirty(false, null);
+            unwrittenPages.remove(pid);
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * Called as the transaction commits, before its commit record is
+     * logged; what it changed is published to snapshots only once that
+     * record is.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        if (txUsedPage.get(tid) != null) {
-            for (PageId pid : txUsedPage.get(tid)) {
-                if (pid2page.containsKey(pid))
-                    flushPage(pid);
+        flushPages(tid, true);
+    }
+
+    /**
+     * Log all pages of the specified transaction as it commits, and write
+     * them to disk once their log records are. Unless synchronous, the
+     * transaction does not wait for the log to be forced: its pages stay
+     * dirty in the pool, to be written after a force like any other dirty
+     * page, at the latest before another transaction changes them. Only a
+     * page that also holds rows of running transactions is written now.
+     *
+     * @see Transaction#setSynchronousCommit
+     */
+    public synchronized void flushPages(TransactionId tid, boolean synchronous) throws IOException {
+        Set<PageId> used = txUsedPage.get(tid);
+        if (used != null) {
+            Map<PageId, Page> logged = new HashMap<>();
+            long lsn = 0;
+            for (PageId pid : used) {
+                Page image = logPage(pid, tid);
+                if (image == null)
+                    continue;
+                if (!synchronous && image == pid2page.get(pid)) {
+                    unwrittenPages.add(pid);
+                    continue;
+                }
+                logged.put(pid, image);
+                lsn = Math.max(lsn, image.getPageLSN());
+            }
+            // WAL: one force puts every page's log records on disk
+            if (!logged.isEmpty()) {
+                Database.getLogFile().forceTo(lsn);
+                for (Map.Entry<PageId, Page> e : logged.entrySet())
+                    writeLoggedPage(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Make the changes tid made to heap pages their committed contents, all
+     * under one commit number, retiring the images they replace to the
+     * version store for snapshots started before.
+     */
+    private synchronized void publishPages(TransactionId tid, Set<PageId> used) {
+        synchronized (versions) {
+            long commit = versions.nextCommit();
+            boolean changed = false;
+            for (PageId pid : used) {
+                byte[] stolen = versions.stolenImage(pid);
+                Page page = pid2page.get(pid);
+                if (page instanceof HeapPage) {
+                    synchronized (page) {
+                        byte[] before = ((HeapPage) page).commitChanges(tid);
+                        if (stolen != null)
+                            before = stolen;
+                        if (before != null) {
+                            versions.retire(pid, before, commit);
+                            changed = true;
+                        }
+                    }
+                } else if (stolen != null) {
+                    versions.retire(pid, stolen, commit);
+                    changed = true;
+                }
+                versions.forgetStolen(pid);
             }
+            if (changed)
+                versions.committed(commit);
         }
     }
 
     /**
-     * Discard all pages of the specified transaction to disk.
+     * Discard all pages of the specified transaction to disk. Pages it
+     * changed rows of under record-level locking are kept, with just its
+     * changes undone.
      */
     public synchronized void discardPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
         if (txUsedPage.get(tid) != null) {
             for (PageId pid : txUsedPage.get(tid)) {
+                Page page = pid2page.get(pid);
+                if (page instanceof HeapPage && ((HeapPage) page).rollbackRows(tid)) {
+                    noteFreeSpace(pid);
+                    continue;
+                }
                 discardPage(pid);
+                versions.forgetStolen(pid);
+                noteFreeSpace(pid);
             }
         }
     }
+    /**
+     * A transaction that changed a heap page aborted, undoing any insert
+     * that filled it: offer the page to inserters again. The map is a
+     * hint, so a page that is still full only costs the next inserter a
+     * look.
+     */
+    private void noteFreeSpace(PageId pid) {
+        if (!(pid instanceof HeapPageId))
+            return;
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        if (file instanceof HeapFile)
+            ((HeapFile) file).getFreeSpaceMap().setHasSpace(pid.pageNumber(), true);
+    }
+
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
@@ -284,17 +1147,34 @@ public class BufferPool {
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for proj1
-        boolean evicted = false;
-        for (Map.Entry<PageId, Page> entry : pid2page.entrySet()) {
-            try {
-                flushPage(entry.getKey());
-                pid2page.remove(entry.getKey());
-                evicted = true;
-                break;
-            } catch (IOException e) {
-                throw new DbException("");
-            }
+        PageId victim = policy.chooseVictim();
+        // pages with rows of running transactions stay; tell the policy
+        // they are in use and ask again
+        for (int tries = pid2page.size(); victim != null && tries > 0
+                && hasPendingRows(pid2page.get(victim)); tries--) {
+            policy.pageAccessed(victim);
+            victim = policy.chooseVictim();
+        }
+        if (victim == null || hasPendingRows(pid2page.get(victim)))
+            throw new DbException("no page available for eviction");
+        try {
+            if (pid2page.containsKey(victim))
+                flushPage(victim);
+        } catch (IOException e) {
+            throw new DbException("could not flush page " + victim.pageNumber() + " during eviction");
+        }
+        Page page = pid2page.get(victim);
+        // a writer's changes were just stolen: keep the committed image for snapshots
+        if (page instanceof HeapPage) {
+            byte[] committed = ((HeapPage) page).modifiedBeforeImage();
+            if (committed != null)
+                versions.keepStolen(victim, committed);
         }
+        pid2page.remove(victim);
+        policy.pageRemoved(victim);
+        // the page is clean now, so it can be kept off-heap
+        if (offHeapFrames != null && page instanceof HeapPage)
+            offHeapFrames.put(victim, page.getPageData());
     }
 
 }
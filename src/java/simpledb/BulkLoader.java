@@ -0,0 +1,202 @@
+package simpledb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BulkLoader appends tuples to a HeapFile by filling pages itself and
+ * writing them straight to the file, instead of inserting each tuple
+ * through the BufferPool. Pages are packed full in the file's own page
+ * format, and written an extent (see {@link HeapFile#getExtentPages}) at a
+ * time in one sequential write, preceded by a single LOAD log record for
+ * the whole extent rather than an UPDATE record per page.
+ * <p>
+ * The loader locks the whole table X until the transaction completes, so
+ * no other transaction reads the loaded tuples before the load commits;
+ * the pages it fills then need no page locks of their own. If the
+ * transaction aborts, or is not committed before a crash, LogFile writes
+ * the pages back empty.
+ * <p>
+ * Used by the <code>COPY table FROM 'file'</code> statement (see
+ * {@link Parser}) and by {@link simpledb.jdbc.SDBConnection#copyIn}.
+ * A loader is used once: add tuples or CSV input, then call finish, and
+ * commit the transaction.
+ */
+public class BulkLoader {
+
+    private final TransactionId tid;
+    private final HeapFile file;
+    private final TupleDesc td;
+    private final int extentPages;
+
+    // pages reserved in the file for the current extent, from firstPage
+    private int firstPage;
+    private int reservedPages;
+    private final List<Page> full = new ArrayList<Page>();
+    private HeapPage current;
+    private long tuples;
+    private int pagesWritten;
+    private boolean finished;
+
+    /**
+     * Creates a loader that appends to the specified table, locking the
+     * table X for the transaction. May block.
+     *
+     * @param tid the transaction performing the load
+     * @param tableId the table to load into
+     * @throws DbException if the table is not a heap file
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *         a deadlock victim while waiting for the table lock
+     */
+    public BulkLoader(TransactionId tid, int tableId)
+            throws DbException, TransactionAbortedException {
+        DbFile f = Database.getCatalog().getDbFile(tableId);
+        if (!(f instanceof HeapFile))
+            throw new DbException("bulk loading is only supported for heap files");
+        Database.getBufferPool().lockTable(tid, tableId, LockMode.X);
+        this.tid = tid;
+        this.file = (HeapFile) f;
+        this.td = f.getTupleDesc();
+        this.extentPages = file.getExtentPages();
+    }
+
+    /**
+     * Append a tuple to the table.
+     *
+     * @throws DbException if the tuple does not match the table, or is too
+     *         large to fit on a page
+     */
+    public void add(Tuple t) throws DbException, IOException {
+        if (finished)
+            throw new DbException("bulk load already finished");
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupleDesc is mismatch");
+        if (current != null && !current.hasRoomFor(t))
+            endPage();
+        if (current == null)
+            current = newPage();
+        if (!current.hasRoomFor(t))
+            throw new DbException("tuple does not fit on an empty page");
+        current.insertTuple(t);
+        tuples++;
+    }
+
+    /**
+     * Append every line of CSV input to the table. Each line holds the
+     * fields of one tuple in order, separated by delimiter; integers are
+     * parsed as in HeapFileEncoder, and strings are trimmed and cut to
+     * Type.STRING_LEN characters. Blank lines are skipped.
+     *
+     * @return the number of tuples read
+     * @throws DbException if a line has the wrong number of fields or a
+     *         malformed integer
+     */
+    public long addCsv(Reader in, char delimiter) throws DbException, IOException {
+        BufferedReader br = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        String sep = java.util.regex.Pattern.quote(String.valueOf(delimiter));
+        long count = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty())
+                continue;
+            String[] fields = line.split(sep, -1);
+            if (fields.length != td.numFields())
+                throw new DbException("expected " + td.numFields() + " fields but found "
+                        + fields.length + " in line: " + line);
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < fields.length; i++) {
+                String s = fields[i].trim();
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    try {
+                        t.setField(i, new IntField(Integer.parseInt(s)));
+                    } catch (NumberFormatException e) {
+                        throw new DbException("bad integer " + s + " in line: " + line);
+                    }
+                } else {
+                    t.setField(i, new StringField(s, Type.STRING_LEN));
+                }
+            }
+            add(t);
+            count++;
+        }
+        return count;
+    }
+
+    /** Start a page in the current extent, reserving a new extent if needed. */
+    private HeapPage newPage() throws IOException {
+        if (full.size() == reservedPages) {
+            writeExtent();
+            firstPage = file.allocatePages(extentPages, false);
+            reservedPages = extentPages;
+        }
+        HeapPageId pid = new HeapPageId(file.getId(), firstPage + full.size());
+        return file.createPage(pid, HeapPage.createEmptyPageData());
+    }
+
+    private void endPage() throws IOException {
+        full.add(current);
+        current = null;
+    }
+
+    /**
+     * Log and write the filled pages of the current extent, and make sure
+     * the buffer pool does not hold stale copies of them.
+     */
+    private void writeExtent() throws IOException {
+        if (full.isEmpty())
+            return;
+        Database.getLogFile().logLoad(tid, file.getId(), firstPage, full.size());
+        file.writePages(full);
+        for (Page p : full)
+            Database.getBufferPool().invalidatePage(p.getId());
+        pagesWritten += full.size();
+        firstPage += full.size();
+        reservedPages -= full.size();
+        full.clear();
+    }
+
+    /**
+     * Write out the remaining pages and force them to disk, so the load is
+     * durable once the transaction commits; then let inserters use the
+     * free space on the last page, and recompute the table's statistics.
+     *
+     * @return the number of tuples loaded
+     */
+    public long finish() throws IOException {
+        if (finished)
+            return tuples;
+        finished = true;
+        FreeSpaceMap fsm = file.getFreeSpaceMap();
+        if (current != null) {
+            int last = current.getId().pageNumber();
+            boolean hasSpace = current.getNumEmptySlots() != 0;
+            endPage();
+            writeExtent();
+            fsm.setHasSpace(last, hasSpace);
+        }
+        if (reservedPages > 0 && !file.releasePages(firstPage, firstPage + reservedPages)) {
+            // pages were allocated after ours; keep the unused ones as empty pages
+            for (int i = firstPage; i < firstPage + reservedPages; i++)
+                fsm.setHasSpace(i, true);
+        }
+        FileChannelManager.force(file.getFile());
+        if (tuples > 0) {
+            TableStats.setTableStats(Database.getCatalog().getTableName(file.getId()),
+                    new TableStats(file.getId(), TableStats.IOCOSTPERPAGE, tid));
+        }
+        return tuples;
+    }
+
+    /** Returns the number of tuples added so far. */
+    public long getTupleCount() {
+        return tuples;
+    }
+
+    /** Returns the number of pages written so far. */
+    public int getPagesWritten() {
+        return pagesWritten;
+    }
+}
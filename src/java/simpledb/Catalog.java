@@ -137,6 +137,11 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the form <code>name (field type [pk], ...) [storage]</code>,
+     * where the optional storage annotation <code>mmap</code> selects a
+     * {@link MappedHeapFile} for the table, <code>slotted</code> a
+     * {@link SlottedHeapFile}, <code>compressed</code> a
+     * {@link CompressedHeapFile} and <code>pax</code> a {@link PaxHeapFile}.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -177,7 +182,25 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                //optional storage annotation after the field list, e.g. "name (...) mmap"
+                String storage = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf;
+                if (storage.equals(""))
+                    tabHf = new HeapFile(dataFile, t);
+                else if (storage.equals("mmap"))
+                    tabHf = new MappedHeapFile(dataFile, t);
+                else if (storage.equals("slotted"))
+                    tabHf = new SlottedHeapFile(dataFile, t);
+                else if (storage.equals("compressed"))
+                    tabHf = new CompressedHeapFile(dataFile, t);
+                else if (storage.equals("pax"))
+                    tabHf = new PaxHeapFile(dataFile, t);
+                else {
+                    System.out.println("Unknown storage annotation " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
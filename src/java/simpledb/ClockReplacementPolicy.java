@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages are arranged in a ring
+ * of frames, each with a reference bit that is set whenever the page is
+ * hit. To find a victim the clock hand sweeps the ring, clearing set bits
+ * and stopping at the first frame whose bit is already clear, so a page has
+ * to go a full revolution without being touched before it is evicted.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames;
+    private final BitSet referenced;
+    private final Map<PageId, Integer> pid2frame;
+    private final Deque<Integer> freeFrames;
+    private int hand;
+
+    /**
+     * Creates a CLOCK policy for a buffer pool of the given size. The ring
+     * grows past this size if the pool temporarily holds more pages.
+     *
+     * @param numPages the expected number of frames in the buffer pool
+     */
+    public ClockReplacementPolicy(int numPages) {
+        frames = new ArrayList<>(numPages);
+        referenced = new BitSet(numPages);
+        pid2frame = new HashMap<>();
+        freeFrames = new ArrayDeque<>();
+        hand = 0;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = pid2frame.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                frame = frames.size();
+                frames.add(pid);
+            } else {
+                frame = freeFrames.poll();
+                frames.set(frame, pid);
+            }
+            pid2frame.put(pid, frame);
+        }
+        referenced.set(frame);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = pid2frame.get(pid);
+        if (frame != null)
+            referenced.set(frame);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = pid2frame.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            referenced.clear(frame);
+            freeFrames.push(frame);
+        }
+    }
+
+    public synchronized PageId chooseVictim() {
+        if (pid2frame.isEmpty())
+            return null;
+        // at most two sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * frames.size(); i++) {
+            if (hand >= frames.size())
+                hand = 0;
+            PageId pid = frames.get(hand);
+            if (pid != null) {
+                if (!referenced.get(hand)) {
+                    hand++;
+                    return pid;
+                }
+                referenced.clear(hand);
+            }
+            hand++;
+        }
+        return null;
+    }
+}
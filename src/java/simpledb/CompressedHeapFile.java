@@ -0,0 +1,278 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are compressed on disk.
+ * Pages are compressed with Deflate at its fastest level when they are
+ * written and decompressed when they are read, so the buffer pool and the
+ * rest of the system still see ordinary HeapPages.
+ * <p>
+ * Compressed pages have different lengths, so the data file is paired with
+ * a page-offset index, a side file named after the data file plus
+ * <code>.idx</code>. It holds one fixed-size entry per page: the page's
+ * offset in the data file, its compressed length and the space reserved for
+ * it. Finding a page therefore takes one lookup in the in-memory copy of
+ * the index. A rewritten page stays in place if it still fits in its
+ * reserved space and is otherwise moved to the end of the data file. Pages
+ * that do not compress are stored as is.
+ * <p>
+ * Tables are stored in this mode when their catalog entry is annotated with
+ * <code>compressed</code>; see {@link Catalog#loadSchema}.
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Size in bytes of each entry of the page-offset index. */
+    public static final int INDEX_ENTRY_SIZE = 16;
+
+    /** Space reserved for a page is its compressed length rounded up to this. */
+    public static final int RESERVE_UNIT = 256;
+
+    private final File indexFile;
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+    private int[] reserved = new int[16];
+    private int numEntries;
+    private long dataEnd;
+
+    private final AtomicLong pagesRead = new AtomicLong();
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Constructs a compressed heap file backed by the specified file and
+     * its page-offset index, loading the index into memory.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        this.indexFile = new File(f.getPath() + ".idx");
+        if (!indexFile.exists() && f.length() > 0)
+            throw new IllegalArgumentException(f + " has no page index; it is not a compressed heap file");
+        try {
+            loadIndex();
+        } catch (IOException e) {
+            throw new RuntimeException("could not read page index " + indexFile, e);
+        }
+        numPage = numEntries;
+    }
+
+    private void loadIndex() throws IOException {
+        int entries = (int) (indexFile.length() / INDEX_ENTRY_SIZE);
+        if (entries == 0)
+            return;
+        byte[] raw = new byte[entries * INDEX_ENTRY_SIZE];
+        FileChannelManager.read(indexFile, raw, 0);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        ensureEntries(entries);
+        for (int i = 0; i < entries; i++) {
+            offsets[i] = buf.getLong();
+            lengths[i] = buf.getInt();
+            reserved[i] = buf.getInt();
+            dataEnd = Math.max(dataEnd, offsets[i] + reserved[i]);
+        }
+        numEntries = entries;
+    }
+
+    private void ensureEntries(int n) {
+        if (n <= offsets.length)
+            return;
+        int size = Math.max(n, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, size);
+        lengths = Arrays.copyOf(lengths, size);
+        reserved = Arrays.copyOf(reserved, size);
+    }
+
+    /**
+     * Read the stored bytes of a page, decompressed, into data. Pages that
+     * were never written read as empty pages.
+     */
+    private void readPageData(int pgNo, byte[] data) throws IOException {
+        long offset;
+        int length;
+        synchronized (this) {
+            if (pgNo < 0 || pgNo >= numEntries || lengths[pgNo] == 0)
+                return;
+            offset = offsets[pgNo];
+            length = lengths[pgNo];
+        }
+        if (length == data.length) {
+            // stored uncompressed
+            FileChannelManager.read(getFile(), data, offset);
+        } else {
+            byte[] compressed = new byte[length];
+            FileChannelManager.read(getFile(), compressed, offset);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                if (inflater.inflate(data) != data.length)
+                    throw new IOException("truncated page " + pgNo + " in " + getFile());
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt page " + pgNo + " in " + getFile(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+        pagesRead.incrementAndGet();
+        bytesRead.addAndGet(length);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            readPageData(pid.pageNumber(), data);
+            return createPage((HeapPageId) pid, data);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        return null;
+    }
+
+    void readPageHeader(int pgNo, byte[] header) throws IOException {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        readPageData(pgNo, data);
+        System.arraycopy(data, 0, header, 0, header.length);
+    }
+
+    /**
+     * Pages of a compressed file take space only once they are written, so
+     * there is nothing to preallocate.
+     */
+    protected int extend(int from, int to, int extentPages) {
+        return to;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        byte[] data = page.getPageData();
+        byte[] stored = compress(data);
+        int pgNo = page.getId().pageNumber();
+
+        long offset;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        synchronized (this) {
+            ensureEntries(pgNo + 1);
+            numEntries = Math.max(numEntries, pgNo + 1);
+            if (stored.length > reserved[pgNo]) {
+                // does not fit where it was; move it to the end of the file
+                offsets[pgNo] = dataEnd;
+                reserved[pgNo] = (stored.length + RESERVE_UNIT - 1) / RESERVE_UNIT * RESERVE_UNIT;
+                dataEnd += reserved[pgNo];
+            }
+            lengths[pgNo] = stored.length;
+            offset = offsets[pgNo];
+            entry.putLong(offset).putInt(stored.length).putInt(reserved[pgNo]);
+            // the page must be on disk before the index points at it
+            FileChannelManager.write(getFile(), stored, offset);
+            FileChannelManager.write(indexFile, entry.array(), (long) pgNo * INDEX_ENTRY_SIZE);
+        }
+        pagesWritten.incrementAndGet();
+        bytesWritten.addAndGet(stored.length);
+    }
+
+    /**
+     * Writes each page separately; compressed pages are not laid out
+     * contiguously, so runs of pages cannot be coalesced.
+     */
+    public int writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+        return pages.size();
+    }
+
+    /**
+     * Compress a page, returning it unchanged if it does not get smaller.
+     */
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length];
+            int len = deflater.deflate(out);
+            if (!deflater.finished() || len >= data.length)
+                return data;
+            return Arrays.copyOf(out, len);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Returns the page-offset index file of this heap file. */
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /** Returns the total compressed size of the pages currently stored. */
+    public synchronized long getCompressedSize() {
+        long size = 0;
+        for (int i = 0; i < numEntries; i++)
+            size += lengths[i];
+        return size;
+    }
+
+    /** Returns the size the pages currently stored would take uncompressed. */
+    public synchronized long getUncompressedSize() {
+        return (long) numEntries * BufferPool.getPageSize();
+    }
+
+    /**
+     * Returns the uncompressed size of the stored pages divided by their
+     * compressed size, or 1 if the file is empty.
+     */
+    public double getCompressionRatio() {
+        long compressed = getCompressedSize();
+        return compressed == 0 ? 1.0 : (double) getUncompressedSize() / compressed;
+    }
+
+    /**
+     * Returns the size of the data file, including space reserved for pages
+     * to grow and space left behind by pages that moved.
+     */
+    public synchronized long getFileSize() {
+        return dataEnd;
+    }
+
+    public long getPagesRead() {
+        return pagesRead.get();
+    }
+
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /** Returns the number of compressed bytes read from the data file. */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /** Returns the number of compressed bytes written to the data file. */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /** Returns a one-line summary of the compression statistics of this file. */
+    public String getCompressionStats() {
+        return String.format("%d pages, %d bytes compressed of %d (ratio %.2f), file %d bytes; "
+                + "%d pages read (%d bytes), %d pages written (%d bytes)",
+                numPages(), getCompressedSize(), getUncompressedSize(), getCompressionRatio(),
+                getFileSize(), getPagesRead(), getBytesRead(), getPagesWritten(), getBytesWritten());
+    }
+}
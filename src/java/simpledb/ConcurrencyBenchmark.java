@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how read-only transactions scale with the number of threads.
+ * Each thread runs transactions back to back, every one of which scans a
+ * whole table through the buffer pool, and the benchmark reports scans per
+ * second for 1, 2, 4, ... threads. The table fits in the buffer pool, so
+ * the scans are limited by locking rather than I/O.
+ * <p>
+ * The scans are run twice: locking pages READ_ONLY, where readers share
+ * every page, and READ_WRITE, where each page admits one reader at a time
+ * as every lock used to. Each scan starts at a random page, so exclusive
+ * readers also deadlock, and only committed scans are counted.
+ * <p>
+ * Usage: <code>java simpledb.SimpleDb benchmark [pages [seconds [maxThreads]]]</code>
+ */
+public class ConcurrencyBenchmark {
+
+    private final HeapFile table;
+    private final int numPages;
+
+    private ConcurrencyBenchmark(HeapFile table) {
+        this.table = table;
+        this.numPages = table.numPages();
+    }
+
+    /**
+     * Scan every page of the table in one transaction, starting from the
+     * specified page and wrapping around, as concurrent queries that do not
+     * visit pages in the same order would.
+     *
+     * @return true if the transaction committed, false if it was aborted
+     */
+    private boolean scan(Permissions perm, int startPage) throws IOException {
+        TransactionId tid = new TransactionId();
+        long sum = 0;
+        try {
+            for (int i = 0; i < numPages; i++) {
+                HeapPageId pid = new HeapPageId(table.getId(), (startPage + i) % numPages);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, perm);
+                Iterator<Tuple> it = page.iterator(new int[] { 0 });
+                while (it.hasNext())
+                    sum += ((IntField) it.next().getField(0)).getValue();
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            return sum != 0;
+        } catch (TransactionAbortedException | DbException e) {
+            Database.getBufferPool().transactionComplete(tid, false);
+            return false;
+        }
+    }
+
+    /** Run threads scanning for the given time; returns the scans committed per second. */
+    private double run(final Permissions perm, int threads, long millis) throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean();
+        final long[] scans = new long[threads];
+        final Random random = new Random();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int slot = t;
+            Thread w = new Thread() {
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            if (scan(perm, random.nextInt(numPages)))
+                                scans[slot]++;
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            workers.add(w);
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        Thread.sleep(millis);
+        done.set(true);
+        for (Thread w : workers)
+            w.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long total = 0;
+        for (long s : scans)
+            total += s;
+        return total / seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        // build a table of the requested size, and keep it all in memory
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, pages * 2));
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "bench");
+        int perPage = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData())
+                .getNumEmptySlots();
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader(t.getId(), hf.getId());
+        for (int i = 0; i < pages * perPage; i++)
+            loader.add(Utility.getHeapTuple(new int[] { i, i }));
+        loader.finish();
+        t.commit();
+
+        ConcurrencyBenchmark bench = new ConcurrencyBenchmark(hf);
+        // warm up the buffer pool and the JIT
+        bench.run(Permissions.READ_ONLY, 1, 500);
+
+        System.out.println(bench.numPages + " pages, " + seconds + "s per run");
+        System.out.println(String.format("%8s %14s %14s", "threads", "READ_ONLY/s", "READ_WRITE/s"));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double shared = bench.run(Permissions.READ_ONLY, threads, seconds * 1000L);
+            double exclusive = bench.run(Permissions.READ_WRITE, threads, seconds * 1000L);
+            System.out.println(String.format("%8d %14.1f %14.1f", threads, shared, exclusive));
+        }
+        System.exit(0);
+    }
+}
@@ -50,12 +50,15 @@ public class Database {
         buffer pool and return it
     */
     public static BufferPool resetBufferPool(int pages) {
+        _instance._bufferpool.stopPageCleaner();
         _instance._bufferpool = new BufferPool(pages);
         return _instance._bufferpool;
     }
 
     //reset the database, used for unit tests only.
     public static void reset() {
+    	_instance._bufferpool.stopPageCleaner();
+    	FileChannelManager.closeAll();
     	_instance = new Database();
     }
 
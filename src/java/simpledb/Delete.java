@@ -1,6 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The delete operator. Delete reads tuples from its child operator and removes
@@ -9,6 +13,9 @@ import java.io.*;
 public class Delete extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Maximum number of heap file record ids collected before deleting them. */
+    static final int BATCH_SIZE = 4096;
     private TransactionId tid;
 
     private DbIterator child;
@@ -42,14 +49,39 @@ public class Delete extends Operator {
 
     public void open() throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        SeqScan.readForWrite(child, Permissions.READ_WRITE);
         child.open();
         super.open();
         hasAccessed = false;
+        // heap file tuples are deleted in batches, one page visit per page
+        Map<Integer, List<RecordId>> batches = new HashMap<Integer, List<RecordId>>();
         while (child.hasNext()) {
             Tuple next = child.next();
-            Database.getBufferPool().deleteTuple(tid, next);
+            int tableId = next.getRecordId().getPageId().getTableId();
+            if (Database.getCatalog().getDbFile(tableId) instanceof HeapFile) {
+                List<RecordId> batch = batches.get(tableId);
+                if (batch == null) {
+                    batch = new ArrayList<RecordId>();
+                    batches.put(tableId, batch);
+                }
+                batch.add(next.getRecordId());
+                if (batch.size() >= BATCH_SIZE) {
+                    // a bulk delete: lock the table once rather than
+                    // every page (and record) it empties, unless another
+                    // transaction uses it; waiting could deadlock
+                    Database.getBufferPool().tryLockTable(tid, tableId, LockMode.X);
+                    Database.getBufferPool().deleteTuples(tid, tableId, batch);
+                    batch.clear();
+                }
+            } else {
+                Database.getBufferPool().deleteTuple(tid, next);
+            }
             count++;
         }
+        for (Map.Entry<Integer, List<RecordId>> entry : batches.entrySet()) {
+            if (!entry.getValue().isEmpty())
+                Database.getBufferPool().deleteTuples(tid, entry.getKey(), entry.getValue());
+        }
     }
 
     public void close() {
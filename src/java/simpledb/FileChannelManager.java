@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileChannelManager keeps one open FileChannel per backing file so that
+ * DbFiles do not pay an open/close pair on every page read or write.
+ * <p>
+ * All I/O goes through positional reads and writes, which do not touch the
+ * channel's file pointer, so concurrent readers of the same file never
+ * serialize on a seek. Channels are opened lazily on first use and stay
+ * open until {@link #close(File)} or {@link #closeAll()} is called.
+ *
+ * @see HeapFile
+ * @see BTreeFile
+ */
+public class FileChannelManager {
+
+    private static final Map<File, FileChannel> channels = new ConcurrentHashMap<File, FileChannel>();
+
+    private FileChannelManager() {
+    }
+
+    /**
+     * Return the open channel for the specified file, opening (and creating)
+     * the file if needed.
+     */
+    public static FileChannel getChannel(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        FileChannel ch = channels.get(key);
+        if (ch == null || !ch.isOpen()) {
+            synchronized (channels) {
+                ch = channels.get(key);
+                if (ch == null || !ch.isOpen()) {
+                    ch = FileChannel.open(key.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channels.put(key, ch);
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Read up to data.length bytes from the file starting at offset.
+     * Bytes past the end of the file are left untouched.
+     *
+     * @return the number of bytes read, or -1 if offset is past the end of the file
+     */
+    public static int read(File f, byte[] data, long offset) throws IOException {
+        while (true) {
+            FileChannel ch = getChannel(f);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            try {
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, offset + buf.position());
+                    if (n < 0)
+                        return buf.position() == 0 ? -1 : buf.position();
+                }
+                return buf.position();
+            } catch (ClosedChannelException e) {
+                // a channel is closed when a thread using it is interrupted;
+                // reopen it unless we are the interrupted thread
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Write all of data to the file starting at offset, growing the file
+     * if necessary.
+     */
+    public static void write(File f, byte[] data, long offset) throws IOException {
+        while (true) {
+            FileChannel ch = getChannel(f);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            try {
+                while (buf.hasRemaining())
+                    ch.write(buf, offset + buf.position());
+                return;
+            } catch (ClosedChannelException e) {
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+            }
+        }
+    }
+
+    /** @return the current size of the file in bytes */
+    public static long size(File f) throws IOException {
+        return getChannel(f).size();
+    }
+
+    /** Force any written data for the file to the storage device. */
+    public static void force(File f) throws IOException {
+        getChannel(f).force(false);
+    }
+
+    /** Close the channel for the specified file, if one is open. */
+    public static void close(File f) {
+        FileChannel ch = channels.remove(f.getAbsoluteFile());
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nothing useful to do; the channel is gone either way
+            }
+        }
+    }
+
+    /** Close every open channel. Used when the database is reset. */
+    public static void closeAll() {
+        synchronized (channels) {
+            for (File f : channels.keySet())
+                close(f);
+        }
+    }
+}
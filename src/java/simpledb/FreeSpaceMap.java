@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap tracks which pages of a HeapFile have at least one empty
+ * slot, so that HeapFile.insertTuple can go straight to a candidate page
+ * instead of locking every page of the file in turn.
+ * <p>
+ * The map is a hint: a page marked as having space may turn out to be full
+ * (e.g. after an aborted delete), in which case the inserter clears its bit
+ * and moves on to the next candidate. It is kept in memory and saved to a
+ * side file next to the heap file (the heap file's name plus
+ * <code>.fsm</code>) at checkpoints. If the side file is missing or does not
+ * match the heap file, the map is rebuilt by reading the slot header of
+ * every page directly from disk.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private final HeapFile heapFile;
+    private final File mapFile;
+    private final BitSet hasSpace;
+    private boolean dirty;
+
+    /**
+     * Loads (or rebuilds) the free space map of a heap file.
+     *
+     * @param heapFile the heap file
+     * @param numPages the number of pages currently in the heap file
+     */
+    public FreeSpaceMap(HeapFile heapFile, int numPages) {
+        this.heapFile = heapFile;
+        this.mapFile = new File(heapFile.getFile().getPath() + ".fsm");
+        this.hasSpace = new BitSet(numPages);
+        if (!load(numPages))
+            rebuild(numPages);
+    }
+
+    private boolean load(int numPages) {
+        if (!mapFile.exists())
+            return false;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+            try {
+                int pageSize = dis.readInt();
+                int mappedPages = dis.readInt();
+                if (pageSize != BufferPool.getPageSize() || mappedPages > numPages)
+                    return false;
+                byte[] bits = new byte[dis.readInt()];
+                dis.readFully(bits);
+                hasSpace.or(BitSet.valueOf(bits));
+                // pages added since the map was saved, e.g. the rest of a
+                // preallocated extent, are most likely empty
+                if (mappedPages < numPages) {
+                    hasSpace.set(mappedPages, numPages);
+                    dirty = true;
+                }
+                return true;
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Scan the slot header of every page on disk. */
+    private void rebuild(int numPages) {
+        byte[] header = new byte[heapFile.pageHeaderSize()];
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            try {
+                java.util.Arrays.fill(header, (byte) 0);
+                heapFile.readPageHeader(pgNo, header);
+            } catch (IOException e) {
+                // assume the page has room; insertTuple will find out
+                hasSpace.set(pgNo);
+                continue;
+            }
+            if (heapFile.headerHasSpace(header))
+                hasSpace.set(pgNo);
+        }
+        dirty = true;
+    }
+
+    /**
+     * @param from the page number to start searching at
+     * @return the first page at or after from that may have an empty slot, or -1
+     */
+    public synchronized int nextPageWithSpace(int from) {
+        return hasSpace.nextSetBit(from);
+    }
+
+    /** Record whether the specified page has at least one empty slot. */
+    public synchronized void setHasSpace(int pgNo, boolean space) {
+        if (hasSpace.get(pgNo) != space) {
+            hasSpace.set(pgNo, space);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the map to its side file if it changed since it was last saved.
+     *
+     * @param numPages the number of pages currently in the heap file
+     */
+    public synchronized void save(int numPages) throws IOException {
+        if (!dirty)
+            return;
+        byte[] bits = hasSpace.get(0, numPages).toByteArray();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mapFile)));
+        try {
+            dos.writeInt(BufferPool.getPageSize());
+            dos.writeInt(numPages);
+            dos.writeInt(bits.length);
+            dos.write(bits);
+        } finally {
+            dos.close();
+        }
+        dirty = false;
+    }
+}
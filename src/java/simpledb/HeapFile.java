@@ -1,12 +1,15 @@
 package simpledb;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -20,9 +23,16 @@ import java.util.NoSuchElementException;
  */
 public class HeapFile implements DbFile {
 
+    /** Default number of pages the backing file grows by at a time. */
+    public static final int DEFAULT_EXTENT_PAGES = 64;
+
     private File file;
     private TupleDesc tupleDesc;
-    protected int numPage;
+    protected volatile int numPage;
+    // pages the backing file has room for; those past numPage are preallocated
+    private int allocatedPages;
+    private int extentPages = DEFAULT_EXTENT_PAGES;
+    private transient FreeSpaceMap freeSpaceMap;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -33,7 +43,34 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.file = f;
         this.tupleDesc = td;
-        numPage = (int) (file.length() / BufferPool.getPageSize());
+        allocatedPages = (int) (file.length() / BufferPool.getPageSize());
+        numPage = usedPages(allocatedPages);
+    }
+
+    /**
+     * Returns the number of pages of the backing file up to the last one
+     * that is not all zeroes. The pages after it are the unused rest of a
+     * preallocated extent, or pages emptied since, and are not counted as
+     * pages of the file when it is opened.
+     *
+     * @param pages the number of pages the backing file has room for
+     */
+    private int usedPages(int pages) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            while (pages > 0) {
+                Arrays.fill(data, (byte) 0);
+                FileChannelManager.read(file, data, (long) (pages - 1) * data.length);
+                for (byte b : data) {
+                    if (b != 0)
+                        return pages;
+                }
+                pages--;
+            }
+        } catch (IOException e) {
+            // count the rest; reading them will fail the same way
+        }
+        return pages;
     }
 
     /**
@@ -69,34 +106,55 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-        int offset = BufferPool.getPageSize() * pid.pageNumber();
+        long offset = (long) BufferPool.getPageSize() * pid.pageNumber();
         byte[] data = new byte[BufferPool.getPageSize()];
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
-            raf.seek(offset);
-            raf.read(data);
-            raf.close();
-            return new HeapPage((HeapPageId) pid, data);
-        } catch (FileNotFoundException fe) {
-            fe.printStackTrace();
+            FileChannelManager.read(file, data, offset);
+            return createPage((HeapPageId) pid, data);
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Decode a page of this file from its on-disk bytes. Subclasses that
+     * store tuples in another page format override this.
+     */
+    protected HeapPage createPage(HeapPageId pid, byte[] data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        int offset = BufferPool.getPageSize() * page.getId().pageNumber();
-        byte[] data = page.getPageData();
-        try {
-            RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            raf.seek(offset);
-            raf.write(data);
-            raf.close();
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        } 
+        long offset = (long) BufferPool.getPageSize() * page.getId().pageNumber();
+        FileChannelManager.write(file, page.getPageData(), offset);
+    }
+
+    /**
+     * Write several pages of this file, coalescing each run of consecutive
+     * page numbers into a single write.
+     *
+     * @param pages pages of this file, sorted by page number
+     * @return the number of write calls issued
+     */
+    public int writePages(List<Page> pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int calls = 0;
+        int i = 0;
+        while (i < pages.size()) {
+            int j = i + 1;
+            while (j < pages.size()
+                    && pages.get(j).getId().pageNumber() == pages.get(j - 1).getId().pageNumber() + 1)
+                j++;
+            byte[] run = new byte[(j - i) * pageSize];
+            for (int k = i; k < j; k++)
+                System.arraycopy(pages.get(k).getPageData(), 0, run, (k - i) * pageSize, pageSize);
+            FileChannelManager.write(file, run, (long) pageSize * pages.get(i).getId().pageNumber());
+            calls++;
+            i = j;
+        }
+        return calls;
     }
 
     /**
@@ -106,36 +164,189 @@ public class HeapFile implements DbFile {
         return numPage;
     }
 
+    /**
+     * Returns the number of pages the backing file grows by when
+     * insertTuple needs a new page and the file has no room for it.
+     */
+    public int getExtentPages() {
+        return extentPages;
+    }
+
+    /**
+     * Sets the number of pages the backing file grows by at a time. Larger
+     * extents mean fewer writes to grow append-heavy tables; the preallocated
+     * pages are empty, and are not counted as pages of the file when it is
+     * reopened, but are still used before the file grows again.
+     */
+    public synchronized void setExtentPages(int extentPages) {
+        if (extentPages < 1)
+            throw new IllegalArgumentException("extent must be at least one page");
+        this.extentPages = extentPages;
+    }
+
+    /**
+     * Reserve the next page number of this file for a new page, growing the
+     * backing file by an extent if it has no room for the page. Safe to call
+     * from concurrent inserters; each gets a different page.
+     */
+    private int allocatePage() throws IOException {
+        return allocatePages(1, true);
+    }
+
+    /**
+     * Reserve a run of consecutive page numbers at the end of this file.
+     *
+     * @param n the number of pages
+     * @param preallocate whether to grow the backing file to hold the pages;
+     *        a caller that is about to write all of them itself, such as
+     *        BulkLoader, passes false
+     * @return the first page number of the run
+     */
+    synchronized int allocatePages(int n, boolean preallocate) throws IOException {
+        int first = numPage;
+        if (first + n > allocatedPages) {
+            if (preallocate)
+                allocatedPages = extend(allocatedPages, first + n, extentPages);
+            else
+                allocatedPages = first + n;
+        }
+        numPage = first + n;
+        return first;
+    }
+
+    /**
+     * Count a page that recovery wrote past the end of this file: one whose
+     * changes were logged but that was still empty on disk, and so not
+     * counted, when the file was opened.
+     */
+    synchronized void pageWritten(int pgNo) {
+        if (pgNo >= numPage) {
+            numPage = pgNo + 1;
+            allocatedPages = Math.max(allocatedPages, numPage);
+        }
+    }
+
+    /**
+     * Give back the unused end of a run of pages from allocatePages, if no
+     * page has been allocated after it since.
+     *
+     * @param from the first unused page of the run
+     * @param to the page after the run
+     * @return true if the pages were given back
+     */
+    synchronized boolean releasePages(int from, int to) {
+        if (numPage != to)
+            return false;
+        numPage = from;
+        return true;
+    }
+
+    /**
+     * Make sure the backing file has room for pages up to to, writing an
+     * extent of empty pages at its end, in a single write, if it does not.
+     * Only pages from from on are written, so pages before it that were
+     * reserved but not written yet are left alone.
+     *
+     * @param from the first page that may be written
+     * @param to the page after the last one that needs room
+     * @param extentPages the number of pages to grow the file by
+     * @return the number of pages the backing file now has room for
+     */
+    protected int extend(int from, int to, int extentPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int start = Math.max(from, (int) (FileChannelManager.size(file) / pageSize));
+        if (to <= start)
+            return start;
+        int end = Math.max(to, start + extentPages);
+        FileChannelManager.write(file, new byte[(end - start) * pageSize], (long) start * pageSize);
+        return end;
+    }
+
+    /**
+     * Returns true if this file's tuples can be locked one at a time under
+     * record-level locking. Files that return false have their pages locked
+     * exclusively by inserts and deletes in either mode.
+     *
+     * @see BufferPool.LockGranularity
+     */
+    protected boolean supportsRecordLocks() {
+        return true;
+    }
+
+    /**
+     * Returns true if inserts and deletes on this file lock the records
+     * they change, and the pages those are on IX, rather than whole pages.
+     */
+    private boolean recordLocking() {
+        return Database.getBufferPool().getLockGranularity() == BufferPool.LockGranularity.RECORD
+                && supportsRecordLocks();
+    }
+
+    /**
+     * Add a tuple to a page; with record locking, the page is only latched
+     * (by its monitor) while it is changed, since other transactions may
+     * be changing other rows of it.
+     *
+     * @return false if the page has no room for the tuple
+     */
+    private boolean insertInto(TransactionId tid, HeapPage page, Tuple t, boolean rowLocks)
+            throws DbException {
+        if (rowLocks)
+            return page.insertRow(tid, t);
+        if (!page.hasRoomFor(t))
+            return false;
+        page.insertTuple(t);
+        return true;
+    }
+
+    /** Update the free space map from a page that may be latched by other inserters. */
+    private void updateFreeSpace(FreeSpaceMap fsm, HeapPage page) {
+        synchronized (page) {
+            fsm.setHasSpace(page.getId().pageNumber(), page.getNumEmptySlots() != 0);
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> affectedPages = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
+        boolean rowLocks = recordLocking();
+        LockMode mode = rowLocks ? LockMode.IX : LockMode.X;
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        int i = fsm.nextPageWithSpace(0);
+        while (i >= 0 && i < numPages()) {
             HeapPageId pid = new HeapPageId(getId(), i);
             HeapPage page = null;
-            page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            page = (HeapPage) Database.getBufferPool().getPage(tid, pid, mode);
 
-            if (page.getNumEmptySlots() != 0) {
-                page.insertTuple(t);
+            if (insertInto(tid, page, t, rowLocks)) {
                 page.markDirty(true, tid);
                 affectedPages.add(page);
+                updateFreeSpace(fsm, page);
                 break;
             }
+            // stale hint if the page filled up since it was last seen
+            updateFreeSpace(fsm, page);
+            i = fsm.nextPageWithSpace(i + 1);
         }
         if (affectedPages.size() == 0) {
-//            HeapPageId npid = new HeapPageId(getId(), numPages());
-            HeapPageId npid = new HeapPageId(getId(), numPages());
-            HeapPage blankPage = new HeapPage(npid, HeapPage.createEmptyPageData());
-            numPage++;
-            writePage(blankPage);
-            HeapPage newPage = null;
-            newPage = (HeapPage) Database.getBufferPool().getPage(tid, npid, Permissions.READ_WRITE);
-
-            newPage.insertTuple(t);
+            // the new page is empty, so it goes straight into the buffer
+            // pool; it reaches the disk when it is flushed
+            HeapPageId npid = new HeapPageId(getId(), allocatePage());
+            HeapPage newPage = (HeapPage) Database.getBufferPool().newPage(tid,
+                    createPage(npid, HeapPage.createEmptyPageData()), mode);
+
+            if (!insertInto(tid, newPage, t, rowLocks))
+                throw new DbException("tuple does not fit on an empty page");
             newPage.markDirty(true, tid);
             affectedPages.add(newPage);
+            updateFreeSpace(fsm, newPage);
         }
+        // nobody else can see the new row before this, as its page is
+        // locked IX, which excludes readers
+        if (rowLocks)
+            Database.getBufferPool().lockRecord(tid, t.getRecordId());
         return affectedPages;
     }
 
@@ -143,20 +354,138 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, 
             TransactionAbortedException {
         ArrayList<Page> affectedPage = new ArrayList<>(1);
-        PageId pid = t.getRecordId().getPageId();
-        for (int i = 0; i < numPages(); i++) {
-            if (i == pid.pageNumber()) {
-                HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                heapPage.deleteTuple(t);
-                heapPage.markDirty(true, tid);
-                affectedPage.add(heapPage);
+        RecordId rid = t.getRecordId();
+        if (recordLocking()) {
+            Database.getBufferPool().lockRecord(tid, rid);
+            HeapPage heapPage = getPageForDelete(tid, rid, LockMode.IX);
+            heapPage.deleteRow(tid, rid);
+            heapPage.markDirty(true, tid);
+            affectedPage.add(heapPage);
+            getFreeSpaceMap().setHasSpace(rid.getPageId().pageNumber(), true);
+            return affectedPage;
+        }
+        HeapPage heapPage = getPageForDelete(tid, rid, LockMode.X);
+        heapPage.deleteTuple(t);
+        heapPage.markDirty(true, tid);
+        affectedPage.add(heapPage);
+        getFreeSpaceMap().setHasSpace(rid.getPageId().pageNumber(), true);
+        return affectedPage;
+    }
+
+    /**
+     * Removes a batch of tuples from this file on behalf of the specified
+     * transaction. The record ids are grouped by page, so each affected page
+     * is fetched, locked and dirtied once no matter how many of its tuples
+     * are deleted. Under record-level locking each record is locked too.
+     *
+     * @param tid The transaction performing the delete
+     * @param rids The record ids of the tuples to delete
+     * @return An ArrayList containing the pages that were modified
+     * @throws DbException if any of the tuples is not in this file
+     */
+    public ArrayList<Page> deleteTuples(TransactionId tid, Collection<RecordId> rids)
+            throws DbException, IOException, TransactionAbortedException {
+        TreeMap<Integer, List<RecordId>> byPage = new TreeMap<>();
+        for (RecordId rid : rids) {
+            int pgNo = rid.getPageId().pageNumber();
+            List<RecordId> onPage = byPage.get(pgNo);
+            if (onPage == null) {
+                onPage = new ArrayList<>();
+                byPage.put(pgNo, onPage);
             }
+            onPage.add(rid);
         }
-        if (affectedPage.get(0) == null) {
-            throw new DbException("tuple " + t + " is not in this table");
+
+        boolean rowLocks = recordLocking();
+        ArrayList<Page> affectedPages = new ArrayList<>(byPage.size());
+        for (Map.Entry<Integer, List<RecordId>> entry : byPage.entrySet()) {
+            List<RecordId> onPage = entry.getValue();
+            HeapPage heapPage;
+            if (rowLocks) {
+                for (RecordId rid : onPage)
+                    Database.getBufferPool().lockRecord(tid, rid);
+                heapPage = getPageForDelete(tid, onPage.get(0), LockMode.IX);
+                for (RecordId rid : onPage)
+                    heapPage.deleteRow(tid, rid);
+            } else {
+                heapPage = getPageForDelete(tid, onPage.get(0), LockMode.X);
+                for (RecordId rid : onPage)
+                    heapPage.deleteTuple(rid);
+            }
+            heapPage.markDirty(true, tid);
+            affectedPages.add(heapPage);
+            getFreeSpaceMap().setHasSpace(entry.getKey(), true);
         }
-        return affectedPage;
-        // not necessary for proj1
+        return affectedPages;
+    }
+
+    /**
+     * Fetch the page holding the specified record, locked in the specified
+     * mode: X, or IX when the record itself is locked.
+     *
+     * @throws DbException if the record is not in this file
+     */
+    private HeapPage getPageForDelete(TransactionId tid, RecordId rid, LockMode mode)
+            throws DbException, TransactionAbortedException {
+        PageId pid = rid == null ? null : rid.getPageId();
+        if (pid == null || pid.getTableId() != getId() || pid.pageNumber() < 0
+                || pid.pageNumber() >= numPages()) {
+            throw new DbException("tuple is not in this table");
+        }
+        return (HeapPage) Database.getBufferPool().getPage(tid, pid, mode);
+    }
+
+    /**
+     * Returns the free space map of this file, loading or building it on
+     * first use.
+     */
+    public synchronized FreeSpaceMap getFreeSpaceMap() {
+        if (freeSpaceMap == null)
+            freeSpaceMap = new FreeSpaceMap(this, numPages());
+        return freeSpaceMap;
+    }
+
+    /**
+     * Number of bytes at the start of a page that {@link #headerHasSpace}
+     * needs to see; used by FreeSpaceMap to rebuild itself without decoding
+     * whole pages.
+     */
+    int pageHeaderSize() {
+        return (int) Math.ceil(slotsPerPage() / 8.0);
+    }
+
+    /** Number of tuple slots on a page of this file; see HeapPage. */
+    private int slotsPerPage() {
+        return (int) Math.floor(BufferPool.getPageSize() * 8.0 / (tupleDesc.getSize() * 8.0 + 1.0));
+    }
+
+    /**
+     * Read the first header.length bytes of the specified page from disk.
+     */
+    void readPageHeader(int pgNo, byte[] header) throws IOException {
+        FileChannelManager.read(file, header, (long) pgNo * BufferPool.getPageSize());
+    }
+
+    /**
+     * Returns true if the page whose header is given has at least one empty
+     * slot.
+     */
+    boolean headerHasSpace(byte[] header) {
+        int numSlots = slotsPerPage();
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (((header[slot / 8] >> (slot % 8)) & 1) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Save the free space map to its side file, if it has been loaded and
+     * has changed. Called at checkpoints.
+     */
+    public synchronized void saveFreeSpaceMap() throws IOException {
+        if (freeSpaceMap != null)
+            freeSpaceMap.save(numPages());
     }
 
     // see DbFile.java for javadocs
@@ -164,6 +493,31 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid, this.getId(), this.numPages());
     }
 
+    /**
+     * Returns an iterator over all the tuples in this file, telling the
+     * pages which fields the caller is going to read.
+     *
+     * @param columns the fields the caller reads, or null for all of them
+     * @see HeapPage#iterator(int[])
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns) {
+        return iterator(tid, columns, Permissions.READ_ONLY);
+    }
+
+    /**
+     * Returns an iterator over all the tuples in this file that gets each
+     * page with the specified permissions; READ_WRITE for a caller that
+     * reads tuples to delete them.
+     *
+     * @param columns the fields the caller reads, or null for all of them
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns, Permissions perm) {
+        HeapFileIterator it = new HeapFileIterator(tid, this.getId(), this.numPages());
+        it.columns = columns;
+        it.perm = perm;
+        return it;
+    }
+
     public class HeapFileIterator implements DbFileIterator {
         private TransactionId tid;
         int pageCounter;
@@ -172,6 +526,9 @@ public class HeapFile implements DbFile {
         Page page;
         Iterator<Tuple> tuples;
         HeapPageId pid;
+        SequentialPrefetcher prefetcher;
+        int[] columns;
+        Permissions perm = Permissions.READ_ONLY;
         
         /**
          * Constructor for Iterator
@@ -185,6 +542,8 @@ public class HeapFile implements DbFile {
             this.pageCounter = 0;
             this.tableId = tableId;
             this.numPages = numPages;
+            this.prefetcher = new SequentialPrefetcher(tableId, numPages,
+                    Database.getBufferPool().getNumPages());
         }
         
         /**
@@ -197,12 +556,13 @@ public class HeapFile implements DbFile {
          */
         private Iterator<Tuple> getTuples(int pageNumber) throws  DbException, TransactionAbortedException {
             pid = new HeapPageId(tableId, pageNumber);
+            prefetcher.pageAccessed(pageNumber);
             HeapPage heapPage = (HeapPage) Database.getBufferPool()
-                    .getPage(tid, pid, Permissions.READ_ONLY);
+                    .getPage(tid, pid, perm);
             if(heapPage==null){
                 return null;
             }
-            return heapPage.iterator();
+            return heapPage.iterator(columns);
         }
 
         /**
@@ -223,4 +223,63 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Rewrite an existing heap file, in the fixed-length format of HeapPage,
+   * as a file of SlottedHeapPages, in which strings are stored without
+   * padding. Tuples keep their order but not their record ids. Both files
+   * use pages of BufferPool.getPageSize() bytes.
+   *
+   * @see SlottedHeapPage
+   * @see SlottedHeapFile
+   * @param inFile The heap file to read
+   * @param outFile The output file to write the slotted pages to
+   * @param td The schema of the tuples in inFile
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void convertToSlotted(File inFile, File outFile, TupleDesc td)
+      throws IOException {
+      int npagebytes = BufferPool.getPageSize();
+      int nrecbytes = td.getSize();
+      int nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);
+      int nheaderbytes = (nrecords + 7) / 8;
+
+      DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(inFile)));
+      FileOutputStream os = new FileOutputStream(outFile);
+      byte[] page = new byte[npagebytes];
+      ArrayList<byte[]> slots = new ArrayList<byte[]>();
+      int free = npagebytes - SlottedHeapPage.HEADER_SIZE;
+      int npages = 0;
+      try {
+          long inPages = inFile.length() / npagebytes;
+          for (long p = 0; p < inPages; p++) {
+              is.readFully(page);
+              for (int slot = 0; slot < nrecords; slot++) {
+                  if (((page[slot / 8] >> (slot % 8)) & 1) == 0)
+                      continue;
+                  ByteArrayOutputStream baos = new ByteArrayOutputStream(nrecbytes);
+                  DataOutputStream dos = new DataOutputStream(baos);
+                  int off = nheaderbytes + slot * nrecbytes;
+                  for (int i = 0; i < td.numFields(); i++) {
+                      Type t = td.getFieldType(i);
+                      t.serializeVariable(t.parse(page, off + td.getFieldOffset(i)), dos);
+                  }
+                  byte[] rec = baos.toByteArray();
+                  if (rec.length + SlottedHeapPage.SLOT_SIZE > free) {
+                      os.write(SlottedHeapPage.pack(slots));
+                      npages++;
+                      slots.clear();
+                      free = npagebytes - SlottedHeapPage.HEADER_SIZE;
+                  }
+                  slots.add(rec);
+                  free -= rec.length + SlottedHeapPage.SLOT_SIZE;
+              }
+          }
+          // flush the last page; an empty file still gets one empty page
+          if (slots.size() > 0 || npages == 0)
+              os.write(SlottedHeapPage.pack(slots));
+      } finally {
+          is.close();
+          os.close();
+      }
+  }
 }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -18,10 +19,47 @@ public class HeapPage implements Page {
     byte header[];
     Tuple tuples[];
     int numSlots;
+    int tupleSize;
+
+    // the page as read from disk; never modified, so lazily decoded tuples
+    // can keep reading from it after their slots change
+    final byte[] data;
 
     private TransactionId lastDirtyOperation;
 
+    // before image captured when the page was first modified since it was
+    // read or last committed; null while it is unmodified
     byte[] oldData;
+    // true until the page is first modified after being read, while data
+    // still holds its current contents
+    private boolean pristine = true;
+
+    // the page as the log last described it, which is what the disk holds
+    // once the pages logged so far are written; null while that is data
+    private byte[] loggedData;
+    private volatile long pageLSN;
+
+    /**
+     * A change to one slot by a transaction that has not completed yet.
+     * Under record-level locking several transactions change rows of the
+     * same page, so each change is kept until its transaction completes,
+     * to undo it alone on abort, and to leave it out of what other
+     * transactions write when they commit.
+     */
+    private static final class RowChange {
+        final TransactionId tid;
+        // the tuple deleted from the slot, or null if it was inserted
+        final Tuple deleted;
+
+        RowChange(TransactionId tid, Tuple deleted) {
+            this.tid = tid;
+            this.deleted = deleted;
+        }
+    }
+
+    // changes by slot; guarded by this, and null unless rows of the page
+    // are being changed under record-level locking
+    private Map<Integer, RowChange> pendingRows;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -40,27 +78,48 @@ public class HeapPage implements Page {
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
-        this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.tupleSize = td.getSize();
+
+        // the header is copied since it changes as slots are filled and
+        // freed; tuples are decoded from data only when they are reached
+        header = Arrays.copyOf(data, getHeaderSize());
+        tuples = new Tuple[numSlots];
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page, such as a region
+     * of a memory-mapped file. The bytes between the buffer's position and
+     * limit must have the layout described in
+     * {@link #HeapPage(HeapPageId, byte[])}. They are copied once, since
+     * the buffer may be reused after the call returns.
+     *
+     * @see MappedHeapFile
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyOf(data));
+    }
+
+    /**
+     * Constructor for subclasses that store tuples in a different layout;
+     * sets only the id, tuple descriptor and raw page data, leaving the
+     * subclass to decode the rest.
+     *
+     * @see SlottedHeapPage
+     */
+    HeapPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = td;
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("short page: " + data.length + " bytes");
+        this.data = data;
+    }
 
-        setBeforeImage();
+    static byte[] copyOf(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        return b;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -82,7 +141,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            return new HeapPage(pid,oldData);
+            return new HeapPage(pid, beforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -90,52 +149,178 @@ public class HeapPage implements Page {
         }
         return null;
     }
-    
-    public void setBeforeImage() {
-        oldData = getPageData().clone();
+
+    /**
+     * Make the current contents of the page its before image. This is
+     * free: the contents are only copied if the page is modified again,
+     * by {@link #captureBeforeImage}. Row changes of transactions that are
+     * still running are left out of it.
+     */
+    public synchronized void setBeforeImage() {
+        oldData = pendingRows == null ? null : committedImage(null).getPageData();
     }
 
     /**
-     * @return the PageId associated with this page.
+     * Create a page of the same format as this one from the specified
+     * bytes. Subclasses that store tuples in another layout override this.
      */
-    public HeapPageId getId() {
-        return pid;
+    HeapPage pageOf(byte[] data) throws IOException {
+        return new HeapPage(pid, data);
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the bytes of the before image of this page: the data it was
+     * read from if it has not been modified since, or the copy taken when
+     * it was first modified.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    synchronized byte[] beforeImageData() {
+        if (oldData != null)
+            return oldData;
+        return pristine ? data : getPageData();
+    }
+
+    /**
+     * Called by every method that modifies the page, before modifying it.
+     * On the first modification since the page was read or committed, keep
+     * its current contents as the before image; pages that are only read
+     * never pay for one. Synchronized, so that a snapshot reader taking
+     * the before image sees the page either before or after it.
+     */
+    synchronized void captureBeforeImage() {
+        if (oldData == null)
+            oldData = pristine ? data : getPageData();
+        pristine = false;
+    }
+
+    /**
+     * Returns true if changes to this page are logged slot by slot, with
+     * INSERT and DELETE records, rather than as whole page images.
+     * Subclasses whose slots cannot be filled in any order, as redoing and
+     * undoing such records needs, return false.
+     *
+     * @see LogFile#logWrite
+     */
+    boolean logsSlots() {
+        return true;
+    }
+
+    /** Returns the bytes of this page as the log last described it. */
+    synchronized byte[] loggedImageData() {
+        return loggedData != null ? loggedData : data;
+    }
+
+    /** The log now describes this page as holding the specified bytes. */
+    synchronized void setLoggedImageData(byte[] image) {
+        loggedData = image;
+    }
+
+    public long getPageLSN() {
+        return pageLSN;
+    }
+
+    public void setPageLSN(long lsn) {
+        pageLSN = lsn;
+    }
+
+    /**
+     * Returns the bytes of the tuple in the specified slot as stored on
+     * the page, or null if the slot is empty.
+     */
+    byte[] slotData(int slot) {
+        if (!isSlotUsed(slot))
             return null;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        try {
+            getTuple(slot).serialize(new DataOutputStream(baos));
+        } catch (IOException e) {
+            // writing to memory; this really shouldn't happen
+            throw new RuntimeException(e);
         }
+        return baos.toByteArray();
+    }
 
-        // read fields in the tuple
+    /**
+     * Put a tuple, given as the bytes slotData returns, in the specified
+     * slot, replacing any tuple there; or empty the slot if tuple is null.
+     * Used by recovery to redo and undo slot-level log records.
+     *
+     * @throws DbException if the page has no such slot or the tuple cannot
+     *         be parsed
+     */
+    synchronized void setSlot(int slot, byte[] tuple) throws DbException {
+        if (slot < 0 || slot >= numSlots)
+            throw new DbException("page " + pid.pageNumber() + " has no slot " + slot);
+        if (isSlotUsed(slot))
+            deleteTuple(new RecordId(pid, slot));
+        if (tuple == null)
+            return;
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(tuple));
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(dis));
         } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            throw new DbException("cannot parse tuple for slot " + slot + ": " + e.getMessage());
+        }
+        insertTuple(t, slot);
+    }
+
+    /**
+     * Returns the bytes of this page as last committed if it has been
+     * modified since, or null if its contents are all committed.
+     */
+    synchronized byte[] modifiedBeforeImage() {
+        return oldData;
+    }
+
+    /**
+     * Make what tid changed on this page committed, as tid commits, and
+     * return the committed image that replaces. Under record-level locking
+     * only tid's rows are committed.
+     *
+     * @return the bytes of the page as committed before, or null if tid
+     *         changed nothing on it
+     */
+    synchronized byte[] commitChanges(TransactionId tid) {
+        byte[] before = oldData;
+        if (pendingRows != null) {
+            if (!hasPendingRows(tid))
+                return null;
+            commitRows(tid);
+        } else {
+            oldData = null;
         }
+        return before;
+    }
 
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Return the tuple in the given slot, decoding it from the page data
+     * on first access. The tuple's fields are themselves decoded lazily.
+     */
+    Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, new RecordId(pid, slotId), this, slotId);
+            tuples[slotId] = t;
+        }
         return t;
     }
 
+    /**
+     * Returns the offset within the page data of the specified field of
+     * the tuple stored in the specified slot when the page was read.
+     */
+    int fieldOffset(int slotId, int field) {
+        return header.length + slotId * tupleSize + td.getFieldOffset(field);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -178,15 +363,14 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // non-empty slot; tuples that were never read are copied as is
+            try {
+                if (tuples[i] == null)
+                    dos.write(data, header.length + i * tupleSize, tupleSize);
+                else
+                    tuples[i].serialize(dos);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
 
@@ -232,12 +416,24 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        RecordId tid = t.getRecordId();
-        HeapPageId hpid = (HeapPageId) tid.getPageId();
-        int tupleNum = tid.tupleno();
-        if (!hpid.equals(pid) || !isSlotUsed(tupleNum)) {
+        deleteTuple(t.getRecordId());
+    }
+
+    /**
+     * Delete the tuple with the specified record id from the page.
+     * @throws DbException if the record is not on this page, or its slot is
+     *         already empty.
+     * @param rid The record id of the tuple to delete
+     */
+    public void deleteTuple(RecordId rid) throws DbException {
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("this tuple is not on this page, or tuple slot is already empty");
+        }
+        int tupleNum = rid.tupleno();
+        if (tupleNum < 0 || tupleNum >= numSlots || !isSlotUsed(tupleNum)) {
             throw new DbException("this tuple is not on this page, or tuple slot is already empty");
         }
+        captureBeforeImage();
         tuples[tupleNum] = null;
         markSlotUsed(tupleNum, false);
     }
@@ -254,16 +450,190 @@ public class HeapPage implements Page {
         // not necessary for lab1
         if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
         for (int i = 0; i < getNumTuples(); i++) {
-            if (!isSlotUsed(i)) {
-                tuples[i] = t;
-                t.setRecordId(new RecordId(pid, i));
-                markSlotUsed(i, true);
+            if (!isSlotUsed(i) && !isSlotHeld(i)) {
+                insertTuple(t, i);
                 return;
             }
         }
         throw new DbException("the page is full (no empty slots)");
     }
 
+    /**
+     * Adds the specified tuple to the page in the specified empty slot.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
+        if (slot < 0 || slot >= numSlots || isSlotUsed(slot))
+            throw new DbException("slot " + slot + " is not empty");
+        captureBeforeImage();
+        tuples[slot] = t;
+        t.setRecordId(new RecordId(pid, slot));
+        markSlotUsed(slot, true);
+    }
+
+    /**
+     * Returns true if a slot is empty only because a transaction that has
+     * not completed deleted its tuple; the slot is kept for the tuple in
+     * case the transaction aborts.
+     */
+    private boolean isSlotHeld(int i) {
+        if (pendingRows == null)
+            return false;
+        RowChange change = pendingRows.get(i);
+        return change != null && change.deleted != null;
+    }
+
+    /**
+     * Insert a tuple on behalf of a transaction that locks rows rather
+     * than the page, and remember the insert until the transaction
+     * completes. Called by HeapFile, with the page locked IX.
+     *
+     * @return false if the page has no room for the tuple
+     */
+    synchronized boolean insertRow(TransactionId tid, Tuple t) throws DbException {
+        if (!hasRoomFor(t))
+            return false;
+        insertTuple(t);
+        if (pendingRows == null)
+            pendingRows = new HashMap<>();
+        pendingRows.put(t.getRecordId().tupleno(), new RowChange(tid, null));
+        return true;
+    }
+
+    /**
+     * Delete a tuple on behalf of a transaction that holds its record
+     * locked exclusively, and remember the deleted tuple until the
+     * transaction completes. Called by HeapFile, with the page locked IX.
+     *
+     * @throws DbException if the record is not on this page, or its slot is
+     *         already empty.
+     */
+    synchronized void deleteRow(TransactionId tid, RecordId rid) throws DbException {
+        if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.tupleno()))
+            throw new DbException("this tuple is not on this page, or tuple slot is already empty");
+        int slot = rid.tupleno();
+        Tuple deleted = getTuple(slot);
+        deleteTuple(rid);
+        if (pendingRows == null)
+            pendingRows = new HashMap<>();
+        // deleting a tuple tid inserted itself leaves nothing to undo
+        if (pendingRows.remove(slot) == null)
+            pendingRows.put(slot, new RowChange(tid, deleted));
+        else if (pendingRows.isEmpty())
+            pendingRows = null;
+    }
+
+    /** Returns true if transactions that have not completed changed rows of this page. */
+    synchronized boolean hasPendingRows() {
+        return pendingRows != null;
+    }
+
+    /** Returns true if the specified transaction changed rows of this page and has not completed. */
+    synchronized boolean hasPendingRows(TransactionId tid) {
+        if (pendingRows == null)
+            return false;
+        for (RowChange change : pendingRows.values()) {
+            if (change.tid.equals(tid))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of this page with the row changes of every transaction
+     * that has not completed undone, except those of tid (which may be
+     * null); this is what is written when tid commits.
+     */
+    synchronized HeapPage committedImage(TransactionId tid) {
+        try {
+            HeapPage image = pageOf(getPageData());
+            image.loggedData = loggedImageData();
+            if (pendingRows != null) {
+                for (Map.Entry<Integer, RowChange> e : pendingRows.entrySet()) {
+                    if (tid == null || !e.getValue().tid.equals(tid))
+                        image.undoRow(e.getKey(), e.getValue());
+                }
+            }
+            return image;
+        } catch (IOException | DbException e) {
+            // the copy has exactly the slots of this page
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The row changes of tid have been written out as committed: forget
+     * them, and make the rows other transactions are still changing the
+     * only difference between this page and its before image. The page is
+     * clean again once no such rows are left.
+     */
+    synchronized void commitRows(TransactionId tid) {
+        if (pendingRows == null)
+            return;
+        pendingRows.values().removeIf(change -> change.tid.equals(tid));
+        settleRows();
+    }
+
+    /**
+     * Undo the row changes of tid, which is aborting, leaving those of
+     * other transactions in place.
+     *
+     * @return true if tid had changed rows of this page
+     */
+    synchronized boolean rollbackRows(TransactionId tid) {
+        if (pendingRows == null)
+            return false;
+        boolean changed = false;
+        Iterator<Map.Entry<Integer, RowChange>> it = pendingRows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, RowChange> e = it.next();
+            if (e.getValue().tid.equals(tid)) {
+                it.remove();
+                try {
+                    undoRow(e.getKey(), e.getValue());
+                } catch (DbException ex) {
+                    // the slot was kept for the row, so this cannot happen
+                    throw new RuntimeException(ex);
+                }
+                changed = true;
+            }
+        }
+        if (changed)
+            settleRows();
+        return changed;
+    }
+
+    /**
+     * After some transaction completed, keep the before image and dirty
+     * state in line with what has been written: the committed rows, which
+     * are on disk unless other transactions still have changes here.
+     */
+    private void settleRows() {
+        if (pendingRows.isEmpty()) {
+            pendingRows = null;
+            oldData = null;
+            lastDirtyOperation = null;
+        } else {
+            oldData = committedImage(null).getPageData();
+            lastDirtyOperation = pendingRows.values().iterator().next().tid;
+        }
+    }
+
+    private void undoRow(int slot, RowChange change) throws DbException {
+        if (change.deleted == null)
+            deleteTuple(new RecordId(pid, slot));
+        else
+            insertTuple(change.deleted, slot);
+    }
+
+    /**
+     * Returns true if the specified tuple would fit on this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -289,7 +659,7 @@ public class HeapPage implements Page {
     public int getNumEmptySlots() {
         int numEmptySlots = 0;
         for (int i = 0; i < numSlots; i++) {
-            numEmptySlots += isSlotUsed(i) ? 0 : 1;
+            numEmptySlots += isSlotUsed(i) || isSlotHeld(i) ? 0 : 1;
         }
         return numEmptySlots;
     }
@@ -298,12 +668,11 @@ public class HeapPage implements Page {
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        int index = i / 8;
-        int offset = i % 8;
-        if (((header[index] >> offset) & 1) == 0) {
-            return false;
-        }
-        return true;
+        return isSet(header, i);
+    }
+
+    private static boolean isSet(byte[] bits, int i) {
+        return ((bits[i / 8] >> (i % 8)) & 1) != 0;
     }
 
     private byte editBitInByte(byte target, int posInByte, boolean value) {
@@ -329,13 +698,47 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        List<Tuple> tupleList = new ArrayList<Tuple>();
-        for (int i = 0; i < numSlots; i++) {
-            if (isSlotUsed(i)) {
-                tupleList.add(tuples[i]);
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page, like
+     * {@link #iterator()}
+     * @param columns the fields the caller is going to read, or null if it
+     * may read all of them. Fields are decoded lazily in any case, so this
+     * is only a hint, which page formats that store columns separately use
+     * to decode the columns one at a time.
+     */
+    public Iterator<Tuple> iterator(int[] columns) {
+        // slots filled after the iterator is created are not visited, so
+        // a scan feeding inserts into the same table does not see its own
+        // output
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < numSlots && !(isSet(used, i) && isSlotUsed(i)))
+                    i++;
+                return i;
             }
-        }
-        return tupleList.iterator();
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (next >= numSlots)
+                    throw new NoSuchElementException();
+                Tuple t = getTuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
@@ -50,6 +50,7 @@ public class Insert extends Operator {
     public void open() throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         hasAccessed = false;
+        SeqScan.readForWrite(child, Permissions.READ_ONLY);
         child.open();
         super.open();
         while (child.hasNext()) {
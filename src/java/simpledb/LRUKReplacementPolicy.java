@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Every page keeps the
+ * logical times of its last K references; the victim is the resident page
+ * whose K-th most recent reference lies furthest in the past. Pages that
+ * have been referenced fewer than K times have an infinite backward
+ * K-distance and are evicted first (oldest last reference first), which is
+ * what keeps a one-pass scan from flushing out frequently used pages such as
+ * B+ tree roots and internal nodes.
+ * <p>
+ * Reference history is retained for a bounded number of recently evicted
+ * pages so that a page that is re-read soon after eviction is not treated
+ * as cold again.
+ */
+public class LRUKReplacementPolicy implements ReplacementPolicy {
+
+    /** Default number of references tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock;
+    private final Map<PageId, long[]> resident;
+    private final LinkedHashMap<PageId, long[]> retained;
+
+    /**
+     * Creates an LRU-2 policy for a buffer pool of the given size.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public LRUKReplacementPolicy(int numPages) {
+        this(numPages, DEFAULT_K);
+    }
+
+    /**
+     * Creates an LRU-K policy for a buffer pool of the given size.
+     *
+     * @param numPages the number of frames in the buffer pool; also the
+     *            number of evicted pages whose history is retained
+     * @param k the number of references tracked per page
+     */
+    public LRUKReplacementPolicy(final int numPages, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.clock = 0;
+        this.resident = new HashMap<>();
+        this.retained = new LinkedHashMap<PageId, long[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > numPages;
+            }
+        };
+    }
+
+    /** history[0] is the most recent reference; 0 means "never" */
+    private void reference(long[] history) {
+        System.arraycopy(history, 0, history, 1, k - 1);
+        history[0] = ++clock;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history == null) {
+            history = retained.remove(pid);
+            if (history == null)
+                history = new long[k];
+            resident.put(pid, history);
+        }
+        reference(history);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history != null)
+            reference(history);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        long[] history = resident.remove(pid);
+        if (history != null)
+            retained.put(pid, history);
+    }
+
+    public synchronized PageId chooseVictim() {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> entry : resident.entrySet()) {
+            long[] history = entry.getValue();
+            long kth = history[k - 1];
+            long last = history[0];
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                victim = entry.getKey();
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+}
@@ -2,181 +2,757 @@ package simpledb;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * CS6400
  * HOLD & MANAGE lock resource
+ * <p>
+ * Locks are held by transactions, not threads: a transaction may take a
+ * lock on one thread and release it on another. What is locked is a table
+ * (see {@link #tableKey}), a page (a PageId) or, under record-level
+ * locking, a single tuple (a RecordId), in one of the {@link LockMode}s. A
+ * page is locked either shared (READ_ONLY), by any number of transactions,
+ * or exclusive (READ_WRITE), by one, or in IX mode by any number of
+ * transactions that lock the records they change separately. A transaction
+ * asking for a stronger mode than it holds upgrades its lock in place if no
+ * other holder conflicts with the new mode; otherwise it waits until they
+ * are done.
+ * <p>
+ * Pages and records are locked hierarchically by {@link #lockPage} and
+ * {@link #lockRecord}: their table is first locked in the matching
+ * intention mode, and nothing is locked below a table whose lock already
+ * covers it. A scan for a query that only reads locks its table S once
+ * instead of every page. When a transaction holds more than the
+ * escalation threshold of page and record locks in one table, they are
+ * traded for a single table lock, S or X depending on whether any of them
+ * was for writing, if that lock can be had without waiting.
+ * <p>
+ * The lock table is a ConcurrentHashMap, so finding an entry takes no lock
+ * and adding one locks only its hash bin. Each entry keeps the number of
+ * holders in each mode in one atomic word, and a lock that does not
+ * conflict is granted or released with a compare-and-set on that word,
+ * without taking any monitor. Only a transaction that has to wait, or a
+ * grant or release that has to wake or account for waiters, synchronizes
+ * on the entry. An entry is removed from the table as soon as no
+ * transaction holds or waits for it. Each transaction keeps the entries it
+ * holds in a plain array, to release them when it completes.
+ * <p>
+ * Deadlocks are found with a wait-for graph that is kept up to date as
+ * transactions block, are granted locks and release them: a waiting
+ * transaction has an edge to every holder of the lock it waits for that
+ * it conflicts with. Only a new edge can close a cycle, so each time an
+ * edge is added the graph is searched from that edge alone. The
+ * transaction on the cycle holding the fewest locks (the one that has done
+ * the least work) is aborted. A transaction that waits longer than the
+ * lock wait timeout is aborted too, in case it is stuck in a way the graph
+ * cannot see.
  */
 public class LockManager {
-    private final Map<PageId, ReadWriteLock> lockMap;
-    private final Map<TransactionId, Map<PageId, LockRecord>> lockHoldMap;
-    private final Map<TransactionId, LockRecord> lockWaitMap;
 
-    public LockManager() {
-        lockMap = new ConcurrentHashMap<>();
-        lockHoldMap = new ConcurrentHashMap<>();
-        lockWaitMap = new ConcurrentHashMap<>();
+    /** Default time a transaction may wait for a lock, in ms. */
+    public static final long DEFAULT_LOCK_WAIT_TIMEOUT = 10000;
+
+    /** Default number of page and record locks in one table after which they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** The lock key of a whole table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId * 31 + 7;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
     }
 
-    private void checkInitLock(PageId pid) {
-        if (lockMap.get(pid) == null) {
-            synchronized (lockMap) {
-                if (lockMap.get(pid) == null)
-                    lockMap.put(pid, new ReentrantReadWriteLock());
-            }
+    /** A transaction waiting for a lock, in the mode it will hold once granted. */
+    private static final class Waiter {
+        final LockMode mode;
+        final Thread thread;
+
+        Waiter(LockMode mode, Thread thread) {
+            this.mode = mode;
+            this.thread = thread;
         }
     }
 
-    private void checkInitHoldTX(TransactionId tid) {
-        if (lockHoldMap.get(tid) == null) {
-            synchronized (lockHoldMap) {
-                if (lockHoldMap.get(tid) == null)
-                    lockHoldMap.put(tid, new ConcurrentHashMap<>());
+    /** The lock on one page or record. */
+    private static final class LockEntry {
+        // the state word holds a COUNT_BITS wide holder count per mode; a
+        // mode whose count is full takes no more holders until one leaves
+        static final int COUNT_BITS = 12;
+        static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+        static final long RECLAIMED = -1L;
+        static final LockMode[] MODES = LockMode.values();
+
+        final Object key;
+        // the number of holders in each mode, or RECLAIMED once the entry
+        // has been removed from the table
+        final AtomicLong state = new AtomicLong();
+        final Map<TransactionId, LockMode> holders = new ConcurrentHashMap<>(4);
+        // guarded by this
+        final Map<TransactionId, Waiter> waiters = new HashMap<>(4);
+        volatile int waiting;
+
+        LockEntry(Object key) {
+            this.key = key;
+        }
+
+        static long unit(LockMode mode) {
+            return 1L << (COUNT_BITS * mode.ordinal());
+        }
+
+        /** The number of holders in the specified mode counted in s. */
+        static long count(long s, LockMode mode) {
+            return (s >>> (COUNT_BITS * mode.ordinal())) & COUNT_MASK;
+        }
+
+        /** Returns true if a holder in the specified mode conflicts with none of the counts in s. */
+        static boolean compatible(long s, LockMode mode) {
+            for (LockMode m : MODES) {
+                if (count(s, m) != 0 && !mode.compatible(m))
+                    return false;
             }
+            return true;
         }
-    }
 
-    public boolean checkHoldLock(TransactionId tid, PageId pid) {
-        Map<PageId, LockRecord> detail = lockHoldMap.get(tid);
-        if (detail != null) {
-            return detail.get(pid) != null;
+        /** The mode tid holds once it is granted mode, given what it holds now. */
+        LockMode target(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held == null ? mode : held.combine(mode);
+        }
+
+        /**
+         * Take the lock in the specified mode, or upgrade tid's lock to cover
+         * it, if no other holder conflicts and the count of holders in the
+         * mode tid ends up with is not full. A full count would carry into
+         * the next mode's; the caller waits as for a conflict, and is woken
+         * when a holder leaves.
+         */
+        boolean tryAcquire(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            LockMode target = held == null ? mode : held.combine(mode);
+            for (;;) {
+                long s = state.get();
+                if (s == RECLAIMED)
+                    return false;
+                long others = held == null ? s : s - unit(held);
+                if (!compatible(others, target) || count(others, target) == COUNT_MASK)
+                    return false;
+                if (state.compareAndSet(s, others + unit(target)))
+                    return true;
+            }
+        }
+
+        /** Drop a holder's count; returns the state left. */
+        long release(LockMode held) {
+            return state.addAndGet(-unit(held));
+        }
+
+        /** The holders other than tid that a holder in the specified mode conflicts with. */
+        List<TransactionId> conflicting(TransactionId tid, LockMode mode) {
+            List<TransactionId> result = new ArrayList<>(holders.size());
+            for (Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !mode.compatible(h.getValue()))
+                    result.add(h.getKey());
+            }
+            return result;
         }
-        return false;
     }
 
-    private boolean checkLock(TransactionId tid, PageId pid, Permissions permissions) {
+    /**
+     * The entries of the locks a transaction holds, in the order it took
+     * them, and how many of them are below each table.
+     */
+    private static final class TxLocks {
+        private LockEntry[] locks = new LockEntry[8];
+        private int size;
+        private final Map<Integer, int[]> perTable = new HashMap<>(4);
 
-        if (lockHoldMap.get(tid) != null) {
-            LockRecord lockRecord = lockHoldMap.get(tid).get(pid);
-            if (lockRecord != null && lockRecord.getPermissions() == permissions)
-                return true;
+        synchronized void add(LockEntry lock) {
+            if (size == locks.length)
+                locks = Arrays.copyOf(locks, size * 2);
+            locks[size++] = lock;
+            int tableId = tableOf(lock.key);
+            if (tableId != NO_TABLE)
+                perTable.computeIfAbsent(tableId, k -> new int[1])[0]++;
+        }
+
+        synchronized void remove(LockEntry lock) {
+            for (int i = 0; i < size; i++) {
+                if (locks[i] == lock) {
+                    locks[i] = locks[--size];
+                    locks[size] = null;
+                    int tableId = tableOf(lock.key);
+                    if (tableId != NO_TABLE)
+                        perTable.get(tableId)[0]--;
+                    return;
+                }
+            }
+        }
+
+        /** The number of page and record locks held in a table. */
+        synchronized int countIn(int tableId) {
+            int[] count = perTable.get(tableId);
+            return count == null ? 0 : count[0];
+        }
+
+        /** The entries of the page and record locks held in a table. */
+        synchronized List<LockEntry> entriesIn(int tableId) {
+            List<LockEntry> result = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (tableOf(locks[i].key) == tableId)
+                    result.add(locks[i]);
+            }
+            return result;
+        }
+
+        synchronized LockEntry[] toArray() {
+            return Arrays.copyOf(locks, size);
+        }
+
+        synchronized int size() {
+            return size;
         }
-        return false;
     }
 
-    public boolean grantReadLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        checkInitLock(pid);
+    /**
+     * The wait-for graph, guarded by its own monitor. A thread may hold an
+     * entry's monitor when it takes this one, but never the other way round.
+     */
+    private final class WaitForGraph {
+        // who each waiting transaction waits for
+        private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+        private final Map<TransactionId, Thread> threads = new HashMap<>();
 
-        if (checkLock(tid, pid, Permissions.READ_ONLY))
-            return true;
-        //add waiting record
-        LockRecord lockRecord = new LockRecord(tid, pid, Permissions.READ_ONLY);
-        lockWaitMap.put(tid, lockRecord);
-        ReadWriteLock readWriteLock = lockMap.get(pid);
-        Lock rl = readWriteLock.readLock();
-        checkInitHoldTX(tid);
-        //start to wait for read lock
-        if (!rl.tryLock()) {
-            //
-            if (deadLockExists(tid, pid)) {
-                throw new TransactionAbortedException();
+        /**
+         * Record that tid waits for the holders of a lock it conflicts with,
+         * and break any deadlock that closes.
+         *
+         * @return true if tid was chosen to break a deadlock
+         */
+        synchronized boolean block(TransactionId tid, Collection<TransactionId> holders, Thread thread) {
+            Set<TransactionId> edges = new HashSet<>(holders);
+            waitsFor.put(tid, edges);
+            threads.put(tid, thread);
+            for (TransactionId holder : new ArrayList<>(edges)) {
+                if (breakCycle(tid, holder))
+                    return true;
             }
-            rl.lock();
+            return false;
         }
-        //if success
-        lockWaitMap.remove(tid);
-        lockRecord.setLock(rl);
 
-        lockHoldMap.get(tid).put(pid, lockRecord);
-        return true;
+        synchronized void unblock(TransactionId tid) {
+            waitsFor.remove(tid);
+            threads.remove(tid);
+        }
+
+        /** Add an edge from a waiting transaction to a new holder. */
+        synchronized void addEdge(TransactionId waiter, TransactionId holder) {
+            Set<TransactionId> edges = waitsFor.get(waiter);
+            if (edges != null && !waiter.equals(holder) && edges.add(holder))
+                breakCycle(waiter, holder);
+        }
+
+        synchronized void removeEdge(TransactionId waiter, TransactionId holder) {
+            Set<TransactionId> edges = waitsFor.get(waiter);
+            if (edges != null)
+                edges.remove(holder);
+        }
+
+        /**
+         * Called after adding the edge from waiter to holder. If holder
+         * already waits, directly or not, for waiter, choose the transaction
+         * on the cycle holding the fewest locks (the youngest, of those
+         * holding equally few) as a victim, and wake it.
+         *
+         * @return true if waiter was chosen
+         */
+        private boolean breakCycle(TransactionId waiter, TransactionId holder) {
+            List<TransactionId> cycle = findPath(holder, waiter);
+            if (cycle == null)
+                return false;
+            TransactionId victim = null;
+            int victimWork = Integer.MAX_VALUE;
+            for (TransactionId t : cycle) {
+                TxLocks held = txLocks.get(t);
+                int work = held == null ? 0 : held.size();
+                if (work < victimWork || work == victimWork && t.getId() > victim.getId()) {
+                    victim = t;
+                    victimWork = work;
+                }
+            }
+            deadlocks.incrementAndGet();
+            victims.add(victim);
+            // the victim is about to stop waiting, so it cannot close another cycle
+            waitsFor.remove(victim);
+            Thread thread = threads.get(victim);
+            if (thread != null)
+                LockSupport.unpark(thread);
+            return victim.equals(waiter);
+        }
+
+        /**
+         * Returns the transactions on a path of wait-for edges from one
+         * transaction to another, or null if there is none.
+         */
+        private List<TransactionId> findPath(TransactionId from, TransactionId to) {
+            Map<TransactionId, TransactionId> parent = new HashMap<>();
+            Deque<TransactionId> stack = new ArrayDeque<>();
+            parent.put(from, null);
+            stack.push(from);
+            while (!stack.isEmpty()) {
+                TransactionId t = stack.pop();
+                if (t.equals(to)) {
+                    List<TransactionId> path = new ArrayList<>();
+                    for (TransactionId p = t; p != null; p = parent.get(p))
+                        path.add(p);
+                    return path;
+                }
+                Set<TransactionId> next = waitsFor.get(t);
+                if (next == null)
+                    continue;
+                for (TransactionId n : next) {
+                    if (!parent.containsKey(n)) {
+                        parent.put(n, t);
+                        stack.push(n);
+                    }
+                }
+            }
+            return null;
+        }
     }
 
-    public boolean grantWriteLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        checkInitLock(pid);
-        if (checkLock(tid, pid, Permissions.READ_WRITE))
+    private final ConcurrentHashMap<Object, LockEntry> lockMap;
+    private final ConcurrentHashMap<TransactionId, TxLocks> txLocks;
+    private final WaitForGraph graph;
+    // transactions chosen to break a deadlock, until they complete
+    private final Set<TransactionId> victims;
+    private volatile long lockWaitTimeout = DEFAULT_LOCK_WAIT_TIMEOUT;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+
+    private static final int NO_TABLE = Integer.MIN_VALUE;
+
+    /** The table a page or record lock is below, or NO_TABLE for a table lock. */
+    private static int tableOf(Object key) {
+        if (key instanceof PageId)
+            return ((PageId) key).getTableId();
+        if (key instanceof RecordId)
+            return ((RecordId) key).getPageId().getTableId();
+        return NO_TABLE;
+    }
+
+    /** Returns the key to lock a whole table with. */
+    public static Object tableKey(int tableId) {
+        return new TableKey(tableId);
+    }
+
+    public LockManager() {
+        lockMap = new ConcurrentHashMap<>();
+        txLocks = new ConcurrentHashMap<>();
+        graph = new WaitForGraph();
+        victims = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Sets how long a transaction may wait for a lock before it is aborted,
+     * in ms.
+     */
+    public void setLockWaitTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("lock wait timeout must be positive");
+        this.lockWaitTimeout = millis;
+    }
+
+    public long getLockWaitTimeout() {
+        return lockWaitTimeout;
+    }
+
+    /**
+     * Sets the number of page and record locks a transaction may hold in
+     * one table before they are escalated to a table lock; 0 disables
+     * escalation.
+     */
+    public void setEscalationThreshold(int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("escalation threshold must not be negative");
+        this.escalationThreshold = threshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /** Returns the number of times page and record locks were traded for a table lock. */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /** Returns the number of deadlocks broken by aborting a transaction. */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /** Returns the number of lock waits that timed out. */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /** Returns the number of tables, pages and records with a lock entry, held or waited for. */
+    public int getLockTableSize() {
+        return lockMap.size();
+    }
+
+    /**
+     * Returns true if tid holds a lock, in any mode, on a table, page or
+     * record, or a lock on the table of a page that covers it.
+     */
+    public boolean checkHoldLock(TransactionId tid, Object key) {
+        if (getLockMode(tid, key) != null)
             return true;
-        //add waiting record
-        LockRecord lockRecord = new LockRecord(tid, pid, Permissions.READ_WRITE);
-        lockWaitMap.put(tid, lockRecord);
-        ReadWriteLock readWriteLock = lockMap.get(pid);
-        Lock wl = readWriteLock.writeLock();
-        checkInitHoldTX(tid);
-        //start to wait for write lock
-        LockRecord readRecord = lockHoldMap.get(tid).get(pid);
-        if (readRecord != null && readRecord.getPermissions() == Permissions.READ_ONLY) {
-            //lock update
-            readRecord.getLock().unlock();
-            lockHoldMap.get(tid).remove(pid);
-        }
-        if (!wl.tryLock()) {
-            //check
-            if (deadLockExists(tid, pid)) {
-                commitTX(tid);
-                throw new TransactionAbortedException();
-            }
-            wl.lock();
+        if (key instanceof PageId) {
+            LockMode table = getLockMode(tid, tableKey(((PageId) key).getTableId()));
+            return table != null && table.coversChildren(LockMode.S);
         }
-        //if success
-        lockWaitMap.remove(tid);
-        lockRecord.setLock(wl);
-        lockHoldMap.get(tid).put(pid, lockRecord);
-        return true;
+        return false;
     }
 
-    public boolean releaseLock(TransactionId tid, PageId pid) {
+    /** Returns the mode tid holds a page or record in, or null if it holds no lock on it. */
+    public LockMode getLockMode(TransactionId tid, Object key) {
+        LockEntry lock = lockMap.get(key);
+        return lock == null ? null : lock.holders.get(tid);
+    }
+
+    private boolean checkLock(TransactionId tid, LockEntry lock, LockMode mode) {
+        if (lock == null)
+            return false;
+        LockMode held = lock.holders.get(tid);
+        return held != null && held.covers(mode);
+    }
+
+    public boolean grantReadLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        return grantLock(tid, pid, Permissions.READ_ONLY);
+    }
+
+    public boolean grantWriteLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        return grantLock(tid, pid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Lock a page for a transaction, blocking until the lock is free.
+     * Asking for READ_WRITE on a page the transaction has locked READ_ONLY
+     * upgrades the lock.
+     *
+     * @throws TransactionAbortedException if tid is chosen to break a
+     *         deadlock, waits longer than the lock wait timeout, or the
+     *         waiting thread is interrupted; the caller must abort tid
+     */
+    public boolean grantLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        return grantLock(tid, pid, LockMode.of(perm));
+    }
 
-        Map<PageId, LockRecord> detail = lockHoldMap.get(tid);
-        if (detail != null) {
-            LockRecord lockRecord = detail.remove(pid);
-            if (lockRecord != null) {
-                lockRecord.getLock().unlock();
+    /**
+     * Lock a page or record for a transaction in the specified mode,
+     * blocking until no other transaction holds it in a conflicting mode.
+     * A transaction that already holds the lock in another mode ends up
+     * holding it in a mode that covers both.
+     *
+     * @param key the PageId or RecordId to lock
+     * @throws TransactionAbortedException as for
+     *         {@link #grantLock(TransactionId, PageId, Permissions)}
+     */
+    public boolean grantLock(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        if (victims.contains(tid))
+            throw new TransactionAbortedException();
+        for (;;) {
+            LockEntry lock = lockMap.get(key);
+            if (checkLock(tid, lock, mode))
+                return true;
+            if (lock == null) {
+                LockEntry created = new LockEntry(key);
+                lock = lockMap.putIfAbsent(key, created);
+                if (lock == null)
+                    lock = created;
+            }
+            if (lock.tryAcquire(tid, mode)) {
+                granted(tid, lock.target(tid, mode), lock);
+                return true;
+            }
+            if (lock.state.get() == LockEntry.RECLAIMED) {
+                // being removed; help, then look again
+                lockMap.remove(key, lock);
+                continue;
+            }
+            if (await(tid, mode, lock))
+                return true;
+        }
+    }
 
+    /**
+     * Try to lock a table, page or record like
+     * {@link #grantLock(TransactionId, Object, LockMode)}, but without
+     * waiting.
+     *
+     * @return false if another transaction holds a conflicting lock
+     */
+    public boolean tryLock(TransactionId tid, Object key, LockMode mode) {
+        for (;;) {
+            LockEntry lock = lockMap.get(key);
+            if (checkLock(tid, lock, mode))
+                return true;
+            if (lock == null) {
+                LockEntry created = new LockEntry(key);
+                lock = lockMap.putIfAbsent(key, created);
+                if (lock == null)
+                    lock = created;
+            }
+            if (lock.tryAcquire(tid, mode)) {
+                granted(tid, lock.target(tid, mode), lock);
                 return true;
             }
+            if (lock.state.get() == LockEntry.RECLAIMED) {
+                lockMap.remove(key, lock);
+                continue;
+            }
+            return false;
         }
-        return false;
     }
 
-    public boolean commitTX(TransactionId tid) {
-        Map<PageId, LockRecord> detail = lockHoldMap.remove(tid);
-        if (detail != null) {
-            for (Map.Entry<PageId, LockRecord> entry : detail.entrySet()) {
+    /**
+     * Lock a page and, first, its table in the matching intention mode.
+     * Nothing is locked if tid's lock on the table covers the page.
+     *
+     * @throws TransactionAbortedException as for
+     *         {@link #grantLock(TransactionId, PageId, Permissions)}
+     */
+    public void lockPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        Object table = tableKey(pid.getTableId());
+        if (covered(tid, table, mode))
+            return;
+        grantLock(tid, table, mode.intention());
+        lockBelow(tid, pid, mode, pid.getTableId());
+    }
+
+    /**
+     * Lock a record, first locking its table and page in the matching
+     * intention mode. Nothing is locked if tid's lock on the table or page
+     * covers the record.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, LockMode mode)
+            throws TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        Object table = tableKey(pid.getTableId());
+        if (covered(tid, table, mode) || covered(tid, pid, mode))
+            return;
+        grantLock(tid, table, mode.intention());
+        lockBelow(tid, pid, mode.intention(), pid.getTableId());
+        lockBelow(tid, rid, mode, pid.getTableId());
+    }
+
+    private boolean covered(TransactionId tid, Object parent, LockMode mode) {
+        LockMode held = getLockMode(tid, parent);
+        return held != null && held.coversChildren(mode);
+    }
 
-                if (entry.getValue().getThread() == Thread.currentThread())
-                    entry.getValue().getLock().unlock();
+    /**
+     * Lock a page or record whose table is locked already, and escalate if
+     * this makes tid's locks in the table reach a multiple of the threshold
+     * (so a failed escalation is not retried on every lock).
+     */
+    private void lockBelow(TransactionId tid, Object key, LockMode mode, int tableId)
+            throws TransactionAbortedException {
+        TxLocks held = txLocks.get(tid);
+        int before = held == null ? 0 : held.countIn(tableId);
+        grantLock(tid, key, mode);
+        int threshold = escalationThreshold;
+        if (threshold == 0)
+            return;
+        held = txLocks.get(tid);
+        int after = held.countIn(tableId);
+        if (after > before && after % threshold == 0)
+            escalate(tid, tableId, held);
+    }
 
+    /**
+     * Trade tid's page and record locks in a table for one table lock, if
+     * that can be granted without waiting.
+     */
+    private void escalate(TransactionId tid, int tableId, TxLocks held) {
+        List<LockEntry> below = held.entriesIn(tableId);
+        LockMode mode = LockMode.S;
+        for (LockEntry lock : below) {
+            LockMode m = lock.holders.get(tid);
+            if (m != null && m.isWrite())
+                mode = LockMode.X;
+        }
+        if (!tryLock(tid, tableKey(tableId), mode))
+            return;
+        escalations.incrementAndGet();
+        for (LockEntry lock : below) {
+            if (unlock(tid, lock))
+                held.remove(lock);
+        }
+    }
 
+    /**
+     * Record a lock that has just been granted in the specified mode: as a
+     * holder of the entry, in the transaction's list (unless it is an
+     * upgrade), and in the edges of any waiters it conflicts with.
+     */
+    private void granted(TransactionId tid, LockMode mode, LockEntry lock) {
+        if (lock.holders.put(tid, mode) == null) {
+            TxLocks held = txLocks.get(tid);
+            if (held == null) {
+                TxLocks created = new TxLocks();
+                held = txLocks.putIfAbsent(tid, created);
+                if (held == null)
+                    held = created;
+            }
+            held.add(lock);
+        }
+        // a waiter that registered before we were a holder may not have
+        // seen us; waiting is read after holders is written, so one of us
+        // adds the edge
+        if (lock.waiting > 0) {
+            synchronized (lock) {
+                for (Map.Entry<TransactionId, Waiter> w : lock.waiters.entrySet()) {
+                    if (!w.getValue().mode.compatible(mode))
+                        graph.addEdge(w.getKey(), tid);
+                }
             }
         }
-        lockWaitMap.remove(tid);
-        return true;
     }
 
     /**
-     * check exists cycle possible?
+     * Wait for a lock, which was not free when we tried it.
      *
-     * @param tid
-     * @param pid
-     * @return
+     * @return true once the lock is granted, or false if the entry was
+     *         reclaimed before we started waiting and must be looked up again
      */
-    private boolean deadLockExists(TransactionId tid, PageId pid) {
-        Set<TransactionId> waitigSet = new HashSet<>();
-        Set<PageId> searched = new HashSet<>();
-        Queue<PageId> queue = new LinkedList<>();
-        waitigSet.add(tid);
-        queue.offer(pid);
-        while (!queue.isEmpty()) {
-            PageId pageId = queue.poll();
-            searched.add(pageId);
-            for (Map.Entry<TransactionId, Map<PageId, LockRecord>> entry : lockHoldMap.entrySet()) {
-                if (entry.getValue().containsKey(pageId)) {
-                    if (waitigSet.contains(entry.getKey()))
+    private boolean await(TransactionId tid, LockMode mode, LockEntry lock)
+            throws TransactionAbortedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockWaitTimeout);
+        // our own mode does not change while we wait
+        LockMode target = lock.target(tid, mode);
+        synchronized (lock) {
+            if (lock.state.get() == LockEntry.RECLAIMED)
+                return false;
+            lock.waiters.put(tid, new Waiter(target, Thread.currentThread()));
+            lock.waiting++;
+            if (lock.tryAcquire(tid, mode)) {
+                stopWaiting(tid, lock);
+                granted(tid, target, lock);
+                return true;
+            }
+            if (graph.block(tid, lock.conflicting(tid, target), Thread.currentThread())) {
+                stopWaiting(tid, lock);
+                throw new TransactionAbortedException();
+            }
+        }
+        try {
+            for (;;) {
+                if (victims.contains(tid))
+                    throw new TransactionAbortedException();
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new TransactionAbortedException();
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+                synchronized (lock) {
+                    if (lock.tryAcquire(tid, mode)) {
+                        stopWaiting(tid, lock);
+                        granted(tid, target, lock);
                         return true;
-                    else {
-                        waitigSet.add(entry.getKey());
-                        LockRecord tos = lockWaitMap.get(entry.getKey());
-                        if (tos != null && !searched.contains(tos.getPid()))
-                            queue.offer(tos.getPid());
                     }
                 }
             }
+        } catch (TransactionAbortedException e) {
+            synchronized (lock) {
+                stopWaiting(tid, lock);
+            }
+            throw e;
+        }
+    }
+
+    /** Remove tid from the waiters of an entry; called with its monitor held. */
+    private void stopWaiting(TransactionId tid, LockEntry lock) {
+        if (lock.waiters.remove(tid) != null) {
+            lock.waiting--;
+            graph.unblock(tid);
         }
+        if (lock.state.get() == 0 && lock.waiting == 0)
+            reclaim(lock);
+    }
 
-        return false;
+    /** Remove an entry nobody holds or waits for from the table; called with its monitor held. */
+    private void reclaim(LockEntry lock) {
+        if (lock.state.compareAndSet(0, LockEntry.RECLAIMED))
+            lockMap.remove(lock.key, lock);
+    }
+
+    /** Drop tid's lock on an entry, waking any waiters. */
+    private boolean unlock(TransactionId tid, LockEntry lock) {
+        LockMode held = lock.holders.remove(tid);
+        if (held == null)
+            return false;
+        long left = lock.release(held);
+        // holders is written before waiting is read; see granted
+        if (lock.waiting > 0 || left == 0) {
+            synchronized (lock) {
+                for (Map.Entry<TransactionId, Waiter> w : lock.waiters.entrySet()) {
+                    graph.removeEdge(w.getKey(), tid);
+                    LockSupport.unpark(w.getValue().thread);
+                }
+                if (lock.waiting == 0)
+                    reclaim(lock);
+            }
+        }
+        return true;
     }
 
+    public boolean releaseLock(TransactionId tid, Object key) {
+        LockEntry lock = lockMap.get(key);
+        if (lock != null && unlock(tid, lock)) {
+            TxLocks held = txLocks.get(tid);
+            if (held != null)
+                held.remove(lock);
+            return true;
+        }
+        return false;
+    }
 
+    public boolean commitTX(TransactionId tid) {
+        TxLocks held = txLocks.remove(tid);
+        if (held != null) {
+            for (LockEntry lock : held.toArray())
+                unlock(tid, lock);
+        }
+        victims.remove(tid);
+        return true;
+    }
 }
@@ -0,0 +1,83 @@
+package simpledb;
+
+/**
+ * The modes in which a transaction can lock a table, a page or a record.
+ * <p>
+ * S and X are the shared and exclusive locks that READ_ONLY and
+ * READ_WRITE map to. The intention modes are taken on a table (or page)
+ * before locking what is in it: IS before reading pages of a table, IX
+ * before writing them, and SIX by a transaction that reads the whole table
+ * and writes some of its pages. A lock on a table in S, SIX or X mode
+ * covers the pages below it, which then need no locks of their own.
+ * <p>
+ * Under record-level locking a page is locked IX by the transactions that
+ * lock the records they change on it: any number of them may change
+ * different records at once, but none while another transaction reads or
+ * writes the whole page.
+ *
+ * @see BufferPool.LockGranularity
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: whether one transaction may hold a while another holds b
+    private static final boolean[][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /** Returns true if one transaction may hold this mode while another holds other. */
+    public boolean compatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * Returns the weakest mode that covers both this mode and other, which
+     * is what a transaction holding one and asking for the other ends up
+     * holding.
+     */
+    public LockMode combine(LockMode other) {
+        if (this == other || other == IS)
+            return this;
+        if (this == IS)
+            return other;
+        if (this == X || other == X)
+            return X;
+        // what is left is two different modes of IX, S and SIX
+        return SIX;
+    }
+
+    /** Returns true if holding this mode also grants other. */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+
+    /**
+     * Returns true if holding this mode on a table (or page) grants the
+     * specified mode on everything in it, so that needs no lock.
+     */
+    public boolean coversChildren(LockMode child) {
+        if (this == X)
+            return true;
+        return (this == S || this == SIX) && (child == S || child == IS);
+    }
+
+    /** The mode the table (or page) must be locked in before locking something in it in this mode. */
+    public LockMode intention() {
+        return this == S || this == IS ? IS : IX;
+    }
+
+    /** Returns true if this mode lets the holder change what it locks. */
+    public boolean isWrite() {
+        return this != S && this != IS;
+    }
+
+    /** The mode a page is locked in for the specified permissions. */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? S : X;
+    }
+}
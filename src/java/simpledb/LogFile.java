@@ -32,6 +32,35 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Forcing the log is shared by the threads that need it at the same time.
+A thread that needs the log on disk up to its last record waits while
+another thread forces it; the first thread to find no force running
+becomes the leader, forces once for everyone waiting, and wakes them.
+A committing leader may also wait a short window (see setGroupCommit) for
+more commits to join its force. The force itself is done holding no
+lock, so commit records keep being appended while it runs.
+<p>
+
+A transaction may also commit without waiting for the force at all (see
+Transaction.setSynchronousCommit). A background flusher then forces the
+log every async commit interval, until it has caught up with such
+commits.
+<p>
+
+<u> Log buffer and LSNs: </u>
+<p>
+
+Records are appended to an in-memory buffer, which is written to the end
+of the file in one go when it fills up and whenever the log is forced,
+so appending costs no I/O. A record's LSN is the log offset just past
+it. Each page is stamped with the LSN of the last record describing a
+change to it (see Page.getPageLSN); before a page is written, forceTo
+makes sure the log is on disk up to that LSN, forcing it only if it is
+not already.
 */
 
 /**
@@ -51,15 +80,32 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, INSERT,
+DELETE, BEGIN, CHECKPOINT, and LOAD
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  UPDATE records are
+written for pages whose changes cannot be logged slot by slot, such as
+B+ tree pages.
+
+<li> INSERT and DELETE records describe a tuple put in or taken out of
+one slot of a heap page (see HeapPage.logsSlots), relative to what
+the log last described for the page: a slot whose tuple changed gets
+both.  The format is the integer table id, the integer page number, the
+integer slot, the integer length of the tuple and the tuple's bytes as
+stored on the page.  Redo and undo set the slot: redoing an INSERT or
+undoing a DELETE puts the tuple in it, and the others empty it, so each
+can be repeated.
+
+<li> LOAD records describe a run of new pages of a heap file that a
+bulk load (see BulkLoader) wrote directly to disk, in place of an UPDATE
+record per page.  The format is the integer table id, the integer number
+of the first page, and the integer number of pages.  The pages were
+empty before the load, so undoing it writes empty pages back.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -82,17 +128,56 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int LOAD_RECORD = 6;
+    static final int INSERT_RECORD = 7;
+    static final int DELETE_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
+    /** Size at which the log buffer is written out without waiting for a force. */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+
+    /** Records appended since the log buffer was last written to the file. */
+    private static final class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(LOG_BUFFER_SIZE);
+        }
+
+        void writeTo(RandomAccessFile raf) throws IOException {
+            raf.write(buf, 0, count);
+        }
+    }
+
+    // the log buffer, guarded by this; it starts at bufferOffset in the
+    // file, and ends at currentOffset
+    private final LogBuffer buffer = new LogBuffer();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private long bufferOffset = 0;
+
     long currentOffset = -1;
     int pageSize;
     int totalRecords = 0; // for PatchTest
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // group commit state, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long syncedOffset = 0; // the log is on disk up to here
+    private long requestedOffset = 0; // the furthest offset anyone waits for
+    private boolean syncing = false;
+    private int waitingCommits = 0;
+    private int groupCommitSize = 32;
+    private long groupCommitWindowMicros = 0;
+    private long syncs = 0;
+    private long commitSyncs = 0;
+    private long commits = 0;
+    private long asyncCommitIntervalMillis = 10;
+    private long asyncCommitOffset = 0; // end of the last commit that did not wait
+    private boolean flusherRunning = false;
+    private long asyncCommits = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -132,9 +217,36 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            bufferOffset = currentOffset;
+            buffer.reset();
+            resetSync();
         }
     }
 
+    /**
+     * Finish the record that began at start by appending its start offset,
+     * and write the log buffer out if it is full. Called holding this log.
+     */
+    private void endRecord(long start) throws IOException {
+        out.writeLong(start);
+        currentOffset = bufferOffset + buffer.size();
+        if (buffer.size() >= LOG_BUFFER_SIZE)
+            flushBuffer();
+    }
+
+    /**
+     * Write the log buffer to the end of the file, without forcing it.
+     * Called holding this log.
+     */
+    private void flushBuffer() throws IOException {
+        if (buffer.size() == 0)
+            return;
+        raf.seek(bufferOffset);
+        buffer.writeTo(raf);
+        bufferOffset += buffer.size();
+        buffer.reset();
+    }
+
     public int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +270,9 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                endRecord(currentOffset);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -173,32 +284,118 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Write a commit record to disk for the specified tid. If
+        synchronous, force the log to disk; otherwise return once the
+        record is written, and let the background flusher force it.
+
+        @param tid The committing transaction.
+        @param synchronous Whether to wait for the log to be forced
+    */
+    public void logCommit(TransactionId tid, boolean synchronous) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            endRecord(currentOffset);
+            // even a commit that does not wait for the force is handed to
+            // the OS, so only a crash of the machine can lose it
+            flushBuffer();
+            end = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // not holding the log, so that other commits can join the force
+        if (synchronous)
+            syncTo(end, true);
+        else
+            syncLater(end);
+    }
+
+    /**
+     * Note a commit that did not wait for the log to be forced up to end,
+     * and start the background flusher if it is not running.
+     */
+    private void syncLater(long end) {
+        synchronized (syncLock) {
+            asyncCommits++;
+            asyncCommitOffset = Math.max(asyncCommitOffset, end);
+            if (flusherRunning)
+                return;
+            flusherRunning = true;
+        }
+        Thread flusher = new Thread("LogFile-flusher") {
+            public void run() {
+                flushAsyncCommits();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided before and after images.)
+    /**
+     * Body of the background flusher: force the log every async commit
+     * interval, and stop once no commit is left waiting for it.
+     */
+    private void flushAsyncCommits() {
+        while (true) {
+            long interval;
+            synchronized (syncLock) {
+                interval = asyncCommitIntervalMillis;
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // force early
+            }
+            long target;
+            synchronized (syncLock) {
+                target = asyncCommitOffset;
+                if (syncedOffset >= target) {
+                    flusherRunning = false;
+                    return;
+                }
+            }
+            try {
+                syncTo(target, false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (syncLock) {
+                    flusherRunning = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /** Write the log records for a page about to be written for the
+        specified tid, and stamp the page with the LSN of the last one.
+        For a heap page that logs slots these are INSERT and DELETE
+        records for the slots that changed since the log last described
+        the page, and before is not used; otherwise it is an UPDATE
+        record with the provided before and after images.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
+        @see simpledb.HeapPage#logsSlots
     */
     public synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
+        if (after instanceof HeapPage && ((HeapPage) after).logsSlots()) {
+            logSlots(tid, (HeapPage) after);
+            return;
+        }
         /* update record conists of
 
            record type
@@ -207,18 +404,147 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        endRecord(currentOffset);
+        after.setPageLSN(currentOffset);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /**
+     * Append an INSERT or DELETE record for every slot of a heap page whose
+     * tuple differs from the image the log last described for the page,
+     * and make the page's contents that image.
+     */
+    private void logSlots(TransactionId tid, HeapPage page) throws IOException {
+        byte[] image = page.getPageData();
+        HeapPage logged = page.pageOf(page.loggedImageData());
+        HeapPage after = page.pageOf(image);
+        int pageNo = page.getId().pageNumber();
+        int tableId = page.getId().getTableId();
+        boolean changed = false;
+        for (int i = 0; i < after.numSlots; i++) {
+            byte[] was = logged.slotData(i);
+            byte[] is = after.slotData(i);
+            if (Arrays.equals(was, is))
+                continue;
+            if (was != null)
+                appendSlotRecord(DELETE_RECORD, tid, tableId, pageNo, i, was);
+            if (is != null)
+                appendSlotRecord(INSERT_RECORD, tid, tableId, pageNo, i, is);
+            changed = true;
+        }
+        page.setLoggedImageData(image);
+        if (changed)
+            page.setPageLSN(currentOffset);
+    }
+
+    private void appendSlotRecord(int type, TransactionId tid, int tableId,
+                                  int pageNo, int slot, byte[] tuple)
+        throws IOException {
+        out.writeInt(type);
+        out.writeLong(tid.getId());
+        out.writeInt(tableId);
+        out.writeInt(pageNo);
+        out.writeInt(slot);
+        out.writeInt(tuple.length);
+        out.write(tuple);
+        endRecord(currentOffset);
+    }
+
+    /**
+     * Set a slot of a heap page on disk, as redoing and undoing INSERT and
+     * DELETE records does: put the tuple in it, or empty it if tuple is
+     * null. A page past the end of the file starts out empty.
+     */
+    private void setSlot(int tableId, int pageNo, int slot, byte[] tuple)
+        throws IOException {
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        HeapPageId pid = new HeapPageId(tableId, pageNo);
+        Database.getBufferPool().awaitCleaning(pid);
+        HeapPage page = (HeapPage) file.readPage(pid);
+        if (page == null)
+            throw new IOException("cannot read page " + pageNo + " of table " + tableId);
+        try {
+            page.setSlot(slot, tuple);
+        } catch (DbException e) {
+            throw new IOException(e);
+        }
+        file.writePage(page);
+        notePageWritten(file, page);
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /**
+     * Keep a heap file in line with a page that rollback or recovery wrote:
+     * count the page if it lies past the pages counted when the file was
+     * opened, and update the free space map, so that space an undone insert
+     * or a redone delete freed is offered to inserters again.
+     */
+    private static void notePageWritten(DbFile file, Page page) {
+        if (file instanceof HeapFile && page instanceof HeapPage) {
+            HeapFile hf = (HeapFile) file;
+            hf.pageWritten(page.getId().pageNumber());
+            hf.getFreeSpaceMap().setHasSpace(page.getId().pageNumber(),
+                    ((HeapPage) page).getNumEmptySlots() != 0);
+        }
+    }
+
+    /** Save the free space maps of all heap files, so a restart need not rebuild them. */
+    private static void saveFreeSpaceMaps() throws IOException {
+        Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+        while (tableIds.hasNext()) {
+            DbFile file = Database.getCatalog().getDbFile(tableIds.next());
+            if (file instanceof HeapFile)
+                ((HeapFile) file).saveFreeSpaceMap();
+        }
+    }
+
+    /** Write a LOAD record to disk for the specified tid, and force the
+        log to disk.  The caller must write the pages only after this
+        returns.
+        @param tid The transaction performing the load
+        @param tableId The heap file the pages belong to
+        @param firstPage The number of the first page written
+        @param numPages The number of consecutive pages written
+
+        @see simpledb.BulkLoader
+    */
+    public synchronized void logLoad(TransactionId tid, int tableId,
+                                     int firstPage, int numPages)
+        throws IOException {
+        Debug.log("LOAD, offset = " + currentOffset);
+        preAppend();
+        out.writeInt(LOAD_RECORD);
+        out.writeLong(tid.getId());
+        out.writeInt(tableId);
+        out.writeInt(firstPage);
+        out.writeInt(numPages);
+        endRecord(currentOffset);
+        force();
+    }
+
+    /** Undo a LOAD record: the pages were new, so write them back empty. */
+    private void undoLoad(int tableId, int firstPage, int numPages)
+        throws IOException {
+        HeapFile file = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        List<Page> empty = new ArrayList<Page>(numPages);
+        for (int i = 0; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(tableId, firstPage + i);
+            empty.add(file.createPage(pid, HeapPage.createEmptyPageData()));
+        }
+        file.writePages(empty);
+        for (Page p : empty) {
+            Database.getBufferPool().invalidatePage(p.getId());
+            file.getFreeSpaceMap().setHasSpace(p.getId().pageNumber(), true);
+        }
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -265,7 +591,7 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(pid.getClass(), byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -275,7 +601,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageNumber());
         } catch (ClassNotFoundException e){
@@ -290,6 +616,9 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
 
@@ -307,11 +636,10 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord(currentOffset);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -321,35 +649,36 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                // free space maps are hints, but saving them here avoids
+                // rebuilding them from the data files on restart
+                saveFreeSpaceMaps();
+                startCpOffset = currentOffset;
+                out.writeInt(CHECKPOINT_RECORD);
+                out.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
                 }
+                endRecord(startCpOffset);
 
                 //once the CP is written, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                flushBuffer();
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
                 Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -361,6 +690,7 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        flushBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -416,6 +746,21 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case LOAD_RECORD:
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    break;
+                case INSERT_RECORD:
+                case DELETE_RECORD:
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    byte[] tuple = new byte[raf.readInt()];
+                    raf.readFully(tuple);
+                    logNew.writeInt(tuple.length);
+                    logNew.write(tuple);
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -450,6 +795,8 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        bufferOffset = currentOffset;
+        resetSync();
         //print();
     }
 
@@ -473,6 +820,7 @@ public class LogFile {
     private void rollbackInternal(long tid)throws NoSuchElementException, IOException {
         // assume when rollbackInternal are called the transaction can't be commited status
         Long begin = tidToFirstLogRecord.get(tid);
+        flushBuffer();
         // if (begin > raf.getFilePointer() || raf.getFilePointer() - LONG_SIZE < 0) {
         //     return;
         // }
@@ -490,10 +838,35 @@ public class LogFile {
                     record_tid = raf.readLong();
                     if (record_tid == tid) {
                         Page before = this.readPageData(raf);
-                        Database.getCatalog().getDbFile(before.getId().getTableId()).writePage(before);
+                        DbFile file = Database.getCatalog().getDbFile(before.getId().getTableId());
+                        Database.getBufferPool().awaitCleaning(before.getId());
+                        file.writePage(before);
+                        notePageWritten(file, before);
                         Database.getBufferPool().discardPage(before.getId());
                         break;
                     }
+                    break;
+                case LOAD_RECORD:
+                    record_tid = raf.readLong();
+                    if (record_tid == tid) {
+                        int tableId = raf.readInt();
+                        int firstPage = raf.readInt();
+                        undoLoad(tableId, firstPage, raf.readInt());
+                    }
+                    break;
+                case INSERT_RECORD:
+                case DELETE_RECORD:
+                    record_tid = raf.readLong();
+                    if (record_tid == tid) {
+                        int tableId = raf.readInt();
+                        int pageNo = raf.readInt();
+                        int slot = raf.readInt();
+                        byte[] tuple = new byte[raf.readInt()];
+                        raf.readFully(tuple);
+                        // undo: an insert empties the slot, a delete refills it
+                        setSlot(tableId, pageNo, slot, type == INSERT_RECORD ? null : tuple);
+                    }
+                    break;
                 default:
                     break;
             }
@@ -527,7 +900,9 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
+                flushBuffer();
                 currentOffset = raf.length();
+                bufferOffset = currentOffset;
                 if (currentOffset - LONG_SIZE > 0) {
                     raf.seek(currentOffset - LONG_SIZE);
                     long iter = raf.readLong();
@@ -552,6 +927,11 @@ public class LogFile {
                         switch (type) {
                             case UPDATE_RECORD:
                                 break;
+                            case LOAD_RECORD:
+                                break;
+                            case INSERT_RECORD:
+                            case DELETE_RECORD:
+                                break;
                             case ABORT_RECORD:
                                 break;
                             case COMMIT_RECORD:
@@ -606,11 +986,31 @@ public class LogFile {
                                 raf.seek(raf.getFilePointer() + LONG_SIZE);
                                 Page before = this.readPageData(raf);
                                 Page after = this.readPageData(raf);
-                                Database.getCatalog().getDbFile(after.getId().getTableId()).writePage(after);
+                                DbFile file = Database.getCatalog().getDbFile(after.getId().getTableId());
+                                file.writePage(after);
+                                notePageWritten(file, after);
                                 Database.getBufferPool().discardPage(after.getId());
 
                                 iter = raf.getFilePointer();
                                 break;
+                            case LOAD_RECORD:
+                                // the pages were forced before the commit
+                                // record; uncommitted loads are undone below
+                                iter = raf.getFilePointer() + LONG_SIZE + 3 * INT_SIZE;
+                                break;
+                            case INSERT_RECORD:
+                            case DELETE_RECORD: {
+                                // redo: an insert fills the slot, a delete empties it
+                                raf.seek(raf.getFilePointer() + LONG_SIZE);
+                                int tableId = raf.readInt();
+                                int pageNo = raf.readInt();
+                                int slot = raf.readInt();
+                                byte[] tuple = new byte[raf.readInt()];
+                                raf.readFully(tuple);
+                                iter = raf.getFilePointer();
+                                setSlot(tableId, pageNo, slot, type == INSERT_RECORD ? tuple : null);
+                                break;
+                            }
                             case ABORT_RECORD:
                                 // redo
                                 record_tid = raf.readLong();
@@ -663,6 +1063,8 @@ public class LogFile {
                             rollbackInternal(tid);
                         }
                     }
+                    // the maps now match the pages recovery left on disk
+                    saveFreeSpaceMaps();
                 }
             }
          }
@@ -673,8 +1075,195 @@ public class LogFile {
         // some code goes here
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force the log to disk, up to the last record written. */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            flushBuffer();
+            end = currentOffset;
+        }
+        syncTo(end, false);
+    }
+
+    /**
+     * Force the log to disk up to the specified LSN, as write-ahead
+     * logging requires before a page stamped with it is written. Returns
+     * straight away if the log already is on disk that far.
+     *
+     * @see Page#getPageLSN
+     */
+    public void forceTo(long lsn) throws IOException {
+        long end;
+        synchronized (this) {
+            end = Math.min(lsn, currentOffset);
+            if (bufferOffset < end)
+                flushBuffer();
+        }
+        syncTo(end, false);
+    }
+
+    /** @return the LSN the next record will be appended after: the end of the log */
+    public synchronized long getCurrentLSN() {
+        return currentOffset;
+    }
+
+    /** @return the LSN up to which the log is known to be on disk */
+    public long getFlushedLSN() {
+        synchronized (syncLock) {
+            return syncedOffset;
+        }
+    }
+
+    /** @return the number of bytes of log records appended, from the start of the log */
+    public synchronized long getLogSize() {
+        return Math.max(0, currentOffset - LONG_SIZE);
+    }
+
+    /**
+     * Configure group commit: a committing thread that finds no force of
+     * the log running waits up to windowMicros for up to maxBatch commits
+     * to join it before forcing. A window of 0 (the default) forces
+     * straight away, still for every commit that arrived meanwhile.
+     */
+    public void setGroupCommit(int maxBatch, long windowMicros) {
+        synchronized (syncLock) {
+            groupCommitSize = Math.max(1, maxBatch);
+            groupCommitWindowMicros = Math.max(0, windowMicros);
+        }
+    }
+
+    /**
+     * Sets how often, in ms, the background flusher forces the log while
+     * commits that did not wait for it are not on disk: at most the window
+     * in which a crash of the machine can lose them.
+     */
+    public void setAsyncCommitInterval(long millis) {
+        synchronized (syncLock) {
+            asyncCommitIntervalMillis = Math.max(1, millis);
+        }
+    }
+
+    /** @return the number of commits that did not wait for the log to be forced */
+    public long getAsyncCommitCount() {
+        synchronized (syncLock) {
+            return asyncCommits;
+        }
+    }
+
+    /** @return true if every commit that did not wait for the log is on disk */
+    public boolean isSynced() {
+        synchronized (syncLock) {
+            return syncedOffset >= asyncCommitOffset;
+        }
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncs;
+        }
+    }
+
+    /** @return the number of commit records forced to disk */
+    public long getCommitCount() {
+        synchronized (syncLock) {
+            return commits;
+        }
+    }
+
+    /** @return the average number of commits each force that made any durable covered */
+    public double getCommitsPerSync() {
+        synchronized (syncLock) {
+            return commitSyncs == 0 ? 0.0 : (double) commits / commitSyncs;
+        }
+    }
+
+    /** The log was truncated or rewritten: offsets start over. */
+    private void resetSync() {
+        synchronized (syncLock) {
+            syncedOffset = 0;
+            requestedOffset = 0;
+            asyncCommitOffset = 0;
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to offset, forcing it if no other
+     * thread is. A commit leading the force waits out the group commit
+     * window first, unless its thread holds this log, which would keep
+     * other commits from joining.
+     */
+    private void syncTo(long offset, boolean commit) throws IOException {
+        long target;
+        int batch;
+        boolean interrupted = false;
+        synchronized (syncLock) {
+            try {
+                requestedOffset = Math.max(requestedOffset, offset);
+                if (commit && ++waitingCommits >= groupCommitSize)
+                    syncLock.notifyAll();
+                while (syncing && syncedOffset < offset)
+                    interrupted |= waitForSync(0);
+                if (syncedOffset >= offset) {
+                    if (commit)
+                        commits++;
+                    return;
+                }
+                syncing = true;
+                if (commit && !Thread.holdsLock(this)) {
+                    // lead a group: give other commits the window to join
+                    long deadline = System.nanoTime() + groupCommitWindowMicros * 1000;
+                    long left;
+                    while (!interrupted && waitingCommits < groupCommitSize
+                            && (left = deadline - System.nanoTime()) > 0)
+                        interrupted = waitForSync(left);
+                }
+                target = requestedOffset;
+                batch = waitingCommits;
+                waitingCommits = 0;
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+        boolean synced = false;
+        try {
+            raf.getChannel().force(true);
+            synced = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (synced) {
+                    syncedOffset = Math.max(syncedOffset, target);
+                    syncs++;
+                    if (batch > 0)
+                        commitSyncs++;
+                    if (commit)
+                        commits++;
+                } else {
+                    // they are still waiting; the next leader forces for them
+                    waitingCommits += batch - (commit ? 1 : 0);
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait on syncLock for up to nanos (forever if 0).
+     *
+     * @return true if the thread was interrupted
+     */
+    private boolean waitForSync(long nanos) {
+        try {
+            if (nanos == 0)
+                syncLock.wait();
+            else
+                syncLock.wait(nanos / 1000000, (int) (nanos % 1000000));
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
     }
 
 }
@@ -258,6 +258,49 @@ public class LogicalPlan {
 
     }
 
+    /** Work out which fields of a scanned table the rest of the plan reads:
+     *  those named in the select list, filters, joins, aggregate, group by
+     *  and order by clauses.
+     *  @return the indexes of those fields in the table, or null if every
+     *   field may be read (e.g. for SELECT *)
+     */
+    private int[] scanColumns(LogicalScanNode table) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*"))
+                return null;
+            names.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        names.add(aggField);
+        names.add(groupByField);
+        names.add(oByField);
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        String prefix = table.alias + ".";
+        ArrayList<Integer> columns = new ArrayList<Integer>();
+        for (String name : names) {
+            if (name == null || !name.startsWith(prefix))
+                continue;
+            try {
+                int i = td.fieldNameToIndex(name.substring(prefix.length()));
+                if (!columns.contains(i))
+                    columns.add(i);
+            } catch (NoSuchElementException e) {
+                // reported when the plan is built
+            }
+        }
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = columns.get(i);
+        return result;
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -294,7 +337,8 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias);
+                 ss = new SeqScan(t, Database.getCatalog().getDbFile(table.t).getId(), table.alias,
+                         scanColumns(table));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
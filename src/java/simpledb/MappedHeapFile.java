@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * MappedHeapFile is a HeapFile whose pages are read through a memory map of
+ * the backing file instead of through read system calls. The file is mapped
+ * in segments of {@link #SEGMENT_PAGES} pages, and readPage copies a page
+ * out of the mapped region, which takes no system call. The copy is what
+ * the HeapPage decodes its tuples from, so they do not change when the page
+ * is later written back under them.
+ * <p>
+ * Writes still go through the file channel (see HeapFile.writePage); the
+ * operating system keeps the mapping coherent with them. When the file
+ * grows (e.g. insertTuple adds an extent) the segment holding the new page
+ * is remapped the first time that page is read.
+ * <p>
+ * Tables are stored in this mode when their catalog entry is annotated with
+ * <code>mmap</code>; see {@link Catalog#loadSchema}.
+ */
+public class MappedHeapFile extends HeapFile {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of pages covered by each mapped segment. */
+    public static final int SEGMENT_PAGES = 16384;
+
+    private transient ArrayList<MappedByteBuffer> segments;
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        segments = new ArrayList<MappedByteBuffer>();
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            ByteBuffer data = pageBuffer(pid.pageNumber());
+            if (data == null) {
+                // page is past the end of the file; nothing to map
+                return super.readPage(pid);
+            }
+            return new HeapPage((HeapPageId) pid, data);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns a buffer covering exactly the specified page in the mapped
+     * file, remapping its segment if the file has grown since it was mapped.
+     *
+     * @return the page's bytes, or null if the page lies past the end of the file
+     */
+    private synchronized ByteBuffer pageBuffer(int pgNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int seg = pgNo / SEGMENT_PAGES;
+        int segOffset = (pgNo % SEGMENT_PAGES) * pageSize;
+
+        while (segments.size() <= seg)
+            segments.add(null);
+        MappedByteBuffer segment = segments.get(seg);
+        if (segment == null || segment.capacity() < segOffset + pageSize) {
+            FileChannel ch = FileChannelManager.getChannel(getFile());
+            long segStart = (long) seg * SEGMENT_PAGES * pageSize;
+            long segLen = Math.min((long) SEGMENT_PAGES * pageSize, ch.size() - segStart);
+            if (segLen < segOffset + pageSize)
+                return null;
+            segment = ch.map(FileChannel.MapMode.READ_ONLY, segStart, segLen);
+            segments.set(seg, segment);
+        }
+
+        ByteBuffer page = segment.duplicate();
+        page.position(segOffset);
+        page.limit(segOffset + pageSize);
+        return page.slice();
+    }
+}
@@ -51,6 +51,18 @@ public interface Page {
     */
     public Page getBeforeImage();
 
+    /**
+     * Returns the LSN of the last log record describing a change to this
+     * page, or 0 if none has been logged since it was read. The log must be
+     * on disk up to this LSN before the page is written.
+     *
+     * @see LogFile#forceTo
+     */
+    public long getPageLSN();
+
+    /** Stamp this page with the LSN of a log record describing a change to it. */
+    public void setPageLSN(long lsn);
+
     /*
      * a transaction that wrote this page just committed it.
      * copy current content to the before image.
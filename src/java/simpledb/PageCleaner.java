@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * PageCleaner is a background thread that writes dirty pages out of the
+ * BufferPool so that query threads find clean frames to evict and have
+ * less to write at commit. Whenever fewer than the target fraction of the
+ * pool's frames are clean, it writes enough dirty pages to get back to the
+ * target.
+ * <p>
+ * Pages are written in (table, page number) order, and runs of consecutive
+ * heap file pages are written with a single I/O call (see
+ * {@link HeapFile#writePages}). Write-ahead logging is preserved: the
+ * log records of every page in a batch are appended to the LogFile and the
+ * log is forced once, up to the highest of their LSNs, before any of the
+ * pages is written.
+ * <p>
+ * The cleaner only starts a batch while it can take the BufferPool's update
+ * latch without waiting. It holds the latch and the pool's monitor only to
+ * pick, log and copy the pages, not while the log is forced or the pages
+ * are written. So it never blocks a transaction that is modifying pages,
+ * reading pages into the pool or committing for the length of its I/O;
+ * only one that writes a page of the batch waits for that batch.
+ *
+ * @see BufferPool#startPageCleaner
+ */
+public class PageCleaner extends Thread {
+
+    private final BufferPool pool;
+    private final double targetCleanFraction;
+    private final long intervalMillis;
+    private volatile boolean running;
+
+    private volatile long pagesWritten = 0;
+    private volatile long writeCalls = 0;
+    private volatile long batches = 0;
+    private final long startMillis;
+
+    /**
+     * @param pool the buffer pool to clean
+     * @param targetCleanFraction fraction of frames (0 to 1) that should be clean
+     * @param intervalMillis how often to check the pool
+     */
+    public PageCleaner(BufferPool pool, double targetCleanFraction, long intervalMillis) {
+        super("BufferPool-cleaner");
+        if (targetCleanFraction < 0 || targetCleanFraction > 1)
+            throw new IllegalArgumentException("target clean fraction must be between 0 and 1");
+        this.pool = pool;
+        this.targetCleanFraction = targetCleanFraction;
+        this.intervalMillis = intervalMillis;
+        this.running = true;
+        this.startMillis = System.currentTimeMillis();
+        setDaemon(true);
+    }
+
+    /** @return the total number of pages written by this cleaner */
+    public long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /** @return the number of write calls issued; less than pages written when runs are coalesced */
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    /** @return the number of batches (log forces) this cleaner performed */
+    public long getBatches() {
+        return batches;
+    }
+
+    /** @return the average number of pages written per second since the cleaner started */
+    public double getPagesPerSecond() {
+        long elapsed = System.currentTimeMillis() - startMillis;
+        return elapsed <= 0 ? 0.0 : pagesWritten * 1000.0 / elapsed;
+    }
+
+    /** Ask the cleaner to stop; it exits after finishing the current batch. */
+    public void shutdown() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                cleanOnce();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (!running)
+                    break;
+                try {
+                    wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy of a page to write out, so that the page itself can go on
+     * being modified while the copy is written; null for pages of files
+     * the cleaner cannot copy pages of, which it leaves to the pool.
+     */
+    private static Page copyOf(Page page) throws IOException {
+        Page copy;
+        if (page instanceof HeapPage) {
+            copy = ((HeapPage) page).pageOf(page.getPageData());
+        } else if (page.getId() instanceof BTreePageId) {
+            BTreeFile file = (BTreeFile) Database.getCatalog().getDbFile(page.getId().getTableId());
+            copy = file.createPage((BTreePageId) page.getId(), page.getPageData());
+        } else {
+            return null;
+        }
+        copy.setPageLSN(page.getPageLSN());
+        return copy;
+    }
+
+    /**
+     * Write enough dirty pages to bring the pool back to its clean target.
+     * The pages are logged and copied under the update latch and the
+     * pool's monitor. Both are released before the log is forced and the
+     * copies are written, so transactions go on modifying, reading and
+     * evicting pages meanwhile. A copy is only written if its page has not
+     * been written or discarded since it was taken, and whatever would
+     * write or discard the page waits for the copy to be written first
+     * (see BufferPool#startCleaning). A page is only marked clean if it
+     * still holds what was written.
+     *
+     * @return the number of pages written
+     */
+    public int cleanOnce() throws IOException {
+        Lock latch = pool.getUpdateLatch().writeLock();
+        if (!latch.tryLock())
+            return 0;
+        List<Page> batch = new ArrayList<Page>();
+        List<Page> images = new ArrayList<Page>();
+        long lsn = 0;
+        synchronized (pool) {
+            try {
+                List<Page> dirty = pool.getDirtyPages();
+                int allowedDirty = (int) Math.floor(pool.getNumPages() * (1.0 - targetCleanFraction));
+                int toWrite = dirty.size() - allowedDirty;
+                if (toWrite <= 0)
+                    return 0;
+
+                Collections.sort(dirty, new Comparator<Page>() {
+                    public int compare(Page a, Page b) {
+                        int c = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+                        return c != 0 ? c : Integer.compare(a.getId().pageNumber(), b.getId().pageNumber());
+                    }
+                });
+
+                LogFile log = Database.getLogFile();
+                for (Page page : dirty) {
+                    if (batch.size() == toWrite)
+                        break;
+                    log.logWrite(page.isDirty(), page.getBeforeImage(), page);
+                    Page image = copyOf(page);
+                    if (image == null)
+                        continue;
+                    lsn = Math.max(lsn, image.getPageLSN());
+                    batch.add(page);
+                    images.add(image);
+                }
+            } finally {
+                latch.unlock();
+            }
+        }
+        if (batch.isEmpty())
+            return 0;
+
+        // WAL: every log record is on disk before any page is
+        Database.getLogFile().forceTo(lsn);
+
+        // leave out pages flushed or discarded since they were copied
+        List<PageId> claimed = new ArrayList<PageId>();
+        synchronized (pool) {
+            for (int k = batch.size() - 1; k >= 0; k--) {
+                if (pool.startCleaning(batch.get(k), images.get(k).getPageLSN())) {
+                    claimed.add(batch.get(k).getId());
+                } else {
+                    batch.remove(k);
+                    images.remove(k);
+                }
+            }
+        }
+
+        int calls = 0;
+        try {
+            int i = 0;
+            while (i < images.size()) {
+                int tableId = images.get(i).getId().getTableId();
+                List<Page> tablePages = new ArrayList<Page>();
+                while (i < images.size() && images.get(i).getId().getTableId() == tableId)
+                    tablePages.add(images.get(i++));
+                DbFile file = Database.getCatalog().getDbFile(tableId);
+                if (file instanceof HeapFile) {
+                    calls += ((HeapFile) file).writePages(tablePages);
+                } else {
+                    for (Page page : tablePages) {
+                        file.writePage(page);
+                        calls++;
+                    }
+                }
+            }
+        } finally {
+            pool.endCleaning(claimed);
+        }
+
+        // pages modified since they were copied stay dirty; so do all
+        // of them if a transaction is modifying pages right now
+        synchronized (pool) {
+            if (latch.tryLock()) {
+                try {
+                    for (int k = 0; k < batch.size(); k++) {
+                        Page page = batch.get(k);
+                        Page image = images.get(k);
+                        if (page.isDirty() != null && page.getPageLSN() == image.getPageLSN()
+                                && Arrays.equals(page.getPageData(), image.getPageData()))
+                            page.markDirty(false, null);
+                    }
+                } finally {
+                    latch.unlock();
+                }
+            }
+        }
+
+        pagesWritten += batch.size();
+        writeCalls += calls;
+        batches++;
+        return batch.size();
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PageFrameArena is a fixed set of page-sized frames allocated once, up
+ * front, in direct (off-heap) ByteBuffers. The BufferPool uses it as a
+ * second level cache: clean pages it evicts are copied into a frame, and a
+ * later miss on the same page is decoded straight from the frame instead
+ * of being read from disk. Because frames live outside the Java heap, the
+ * arena can be many gigabytes without adding to garbage collection work.
+ * <p>
+ * When every frame is in use the least recently used frame is reused.
+ * All methods are synchronized.
+ *
+ * @see BufferPool
+ */
+public class PageFrameArena {
+
+    private final int pageSize;
+    private final int numFrames;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final LinkedHashMap<PageId, Integer> pid2frame;
+    private final Deque<Integer> freeFrames;
+
+    /**
+     * Allocates an arena of numFrames frames of BufferPool.getPageSize() bytes.
+     *
+     * @param numFrames the number of page frames to allocate
+     */
+    public PageFrameArena(int numFrames) {
+        this.pageSize = BufferPool.getPageSize();
+        this.numFrames = numFrames;
+        // a single direct buffer is limited to 2GB, so large arenas are chunked
+        this.framesPerChunk = Math.max(1, Math.min(numFrames, Integer.MAX_VALUE / pageSize));
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+        this.pid2frame = new LinkedHashMap<PageId, Integer>(16, 0.75f, true);
+        this.freeFrames = new ArrayDeque<Integer>(numFrames);
+        for (int i = 0; i < numFrames; i++)
+            freeFrames.add(i);
+    }
+
+    /** @return the total number of frames in this arena */
+    public int numFrames() {
+        return numFrames;
+    }
+
+    /** @return the number of frames currently holding a page */
+    public synchronized int size() {
+        return pid2frame.size();
+    }
+
+    /** @return a buffer whose position and limit span exactly one frame */
+    private ByteBuffer frame(int frame) {
+        ByteBuffer buf = chunks[frame / framesPerChunk].duplicate();
+        int offset = (frame % framesPerChunk) * pageSize;
+        buf.limit(offset + pageSize);
+        buf.position(offset);
+        return buf;
+    }
+
+    /**
+     * Copy the page's data into a frame, reusing the least recently used
+     * frame if the arena is full.
+     *
+     * @param pid the id of the page
+     * @param data the page's serialized contents; must be one page long
+     */
+    public synchronized void put(PageId pid, byte[] data) {
+        if (data.length != pageSize || numFrames == 0)
+            return;
+        Integer frame = pid2frame.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                Map.Entry<PageId, Integer> eldest = pid2frame.entrySet().iterator().next();
+                pid2frame.remove(eldest.getKey());
+                freeFrames.push(eldest.getValue());
+            }
+            frame = freeFrames.poll();
+            pid2frame.put(pid, frame);
+        }
+        frame(frame).put(data);
+    }
+
+    /**
+     * Return a read-only view of the frame holding the page. The view is
+     * only valid until the next call that modifies this arena, so callers
+     * must decode it while holding the arena's monitor or before calling
+     * put/remove.
+     *
+     * @return the frame's contents, or null if the page is not in the arena
+     */
+    public synchronized ByteBuffer get(PageId pid) {
+        Integer frame = pid2frame.get(pid);
+        if (frame == null)
+            return null;
+        return frame(frame).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Drop the page from the arena, freeing its frame.
+     *
+     * @return true if the page was in the arena
+     */
+    public synchronized boolean remove(PageId pid) {
+        Integer frame = pid2frame.remove(pid);
+        if (frame == null)
+            return false;
+        freeFrames.push(frame);
+        return true;
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -272,6 +274,8 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private boolean readOnly = false;
+    private boolean synchronousCommit = true;
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
@@ -457,6 +461,8 @@ public class Parser {
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
             curtrans = new Transaction();
+            curtrans.setReadOnly(s.isReadOnly());
+            curtrans.setSynchronousCommit(synchronousCommit);
             curtrans.start();
             inUserTrans = true;
             System.out.println("Started a new transaction tid = "
@@ -466,6 +472,136 @@ public class Parser {
         }
     }
 
+    /** COPY table FROM 'file' [DELIMITER 'c'], which Zql does not parse */
+    static final Pattern COPY_STATEMENT = Pattern.compile(
+            "\\s*copy\\s+(\\w+)\\s+from\\s+'([^']*)'(?:\\s+delimiter\\s+'(.)')?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Handle a <code>COPY table FROM 'file' [DELIMITER 'c']</code>
+     * statement, loading the lines of a CSV file (comma separated unless
+     * another delimiter is given) into the table.
+     *
+     * @see #copyIn
+     */
+    public void handleCopyStatement(Matcher copy) {
+        String table = copy.group(1);
+        char delimiter = copy.group(3) == null ? ',' : copy.group(3).charAt(0);
+        try {
+            Reader in = new BufferedReader(new FileReader(copy.group(2)));
+            try {
+                long rows = copyIn(table, in, delimiter);
+                System.out.println(rows + " rows loaded into " + table + ".");
+            } finally {
+                in.close();
+            }
+        } catch (simpledb.ParsingException e) {
+            System.out
+                    .println("Invalid SQL expression: \n \t" + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** SET name = value (or TO value), which Zql does not parse */
+    static final Pattern SET_STATEMENT = Pattern.compile(
+            "\\s*set\\s+(\\w+)\\s*(?:=|\\s+to\\s+)\\s*'?(\\w+)'?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Handle a <code>SET name = value</code> statement.
+     *
+     * @see #setOption
+     */
+    public void handleSetStatement(Matcher set) {
+        try {
+            setOption(set.group(1), set.group(2));
+            System.out.println(set.group(1) + " set to " + set.group(2) + ".");
+        } catch (simpledb.ParsingException e) {
+            System.out
+                    .println("Invalid SQL expression: \n \t" + e.getMessage());
+        }
+    }
+
+    /**
+     * Change a setting of this session. The only one is
+     * <code>synchronous_commit</code> (on or off): whether the current
+     * transaction and those started from now on wait for the log to be
+     * forced to disk when they commit.
+     *
+     * @see Transaction#setSynchronousCommit
+     */
+    public void setOption(String name, String value) throws simpledb.ParsingException {
+        if (!name.equalsIgnoreCase("synchronous_commit"))
+            throw new simpledb.ParsingException("Unknown setting : " + name);
+        if (value.equalsIgnoreCase("on") || value.equalsIgnoreCase("true"))
+            synchronousCommit = true;
+        else if (value.equalsIgnoreCase("off") || value.equalsIgnoreCase("false"))
+            synchronousCommit = false;
+        else
+            throw new simpledb.ParsingException("Invalid value for " + name + " : " + value);
+        if (curtrans != null)
+            curtrans.setSynchronousCommit(synchronousCommit);
+    }
+
+    /** @return whether transactions started by this parser wait for the log when they commit */
+    public boolean isSynchronousCommit() {
+        return synchronousCommit;
+    }
+
+    /**
+     * Bulk load CSV input into a table with a {@link BulkLoader}, in the
+     * current transaction if one was started with SET TRANSACTION, and in a
+     * transaction of its own otherwise. If the load fails the transaction
+     * is aborted.
+     *
+     * @return the number of rows loaded
+     */
+    public long copyIn(String table, Reader in, char delimiter)
+            throws simpledb.ParsingException, DbException, IOException,
+            TransactionAbortedException {
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
+
+        if (!this.inUserTrans) {
+            curtrans = new Transaction();
+            curtrans.setSynchronousCommit(synchronousCommit);
+            curtrans.start();
+            System.out.println("Started a new transaction tid = "
+                    + curtrans.getId().getId());
+        }
+        try {
+            BulkLoader loader = new BulkLoader(curtrans.getId(), tableId);
+            loader.addCsv(in, delimiter);
+            long rows = loader.finish();
+            if (!inUserTrans) {
+                curtrans.commit();
+                System.out.println("Transaction "
+                        + curtrans.getId().getId() + " committed.");
+            }
+            return rows;
+        } catch (DbException | IOException | TransactionAbortedException
+                | RuntimeException a) {
+            // Whenever error happens, abort the current transaction
+            curtrans.abort();
+            System.out.println("Transaction " + curtrans.getId().getId()
+                    + " aborted because of unhandled error");
+            this.inUserTrans = false;
+            throw a;
+        } finally {
+            if (!inUserTrans)
+                curtrans = null;
+        }
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
@@ -495,7 +631,31 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Make the transactions started for single statements read-only, so
+     * that queries read from a snapshot without locking. Transactions
+     * started with <code>SET TRANSACTION READ ONLY</code> are read-only
+     * either way.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     public void processNextStatement(String s) {
+        Matcher copy = COPY_STATEMENT.matcher(s);
+        if (copy.matches()) {
+            handleCopyStatement(copy);
+            return;
+        }
+        Matcher set = SET_STATEMENT.matcher(s);
+        if (set.matches()) {
+            handleSetStatement(set);
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -514,6 +674,8 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
+                    curtrans.setReadOnly(readOnly);
+                    curtrans.setSynchronousCommit(synchronousCommit);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -534,13 +696,16 @@ public class Parser {
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
+                    // run the query inside its transaction, so that its
+                    // locks (or snapshot) end with it
+                    List<Tuple> result = query != null ? query.exec() : null;
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
                         System.out.println("Transaction "
                                 + curtrans.getId().getId() + " committed.");
                     }
-                    if (query != null)
-                        return query.exec();
+                    if (result != null)
+                        return result;
 
                 } catch (Throwable a) {
                     // Whenever error happens, abort the current transaction
@@ -592,6 +757,8 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
+                    curtrans.setReadOnly(readOnly);
+                    curtrans.setSynchronousCommit(synchronousCommit);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -662,7 +829,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "copy" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -749,7 +916,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -758,8 +924,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -0,0 +1,35 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * PaxHeapFile is a HeapFile whose pages are PaxHeapPages, storing each
+ * field of a page's tuples in its own minipage. Scans that project a few
+ * columns of a wide table read and decode only those columns; see
+ * {@link SeqScan#SeqScan(TransactionId, int, String, int[])}.
+ * <p>
+ * Tables are stored in this mode when their catalog entry is annotated with
+ * <code>pax</code>; see {@link Catalog#loadSchema}.
+ */
+public class PaxHeapFile extends HeapFile {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a PAX heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     */
+    public PaxHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    protected HeapPage createPage(HeapPageId pid, byte[] data) throws IOException {
+        return new PaxHeapPage(pid, data);
+    }
+}
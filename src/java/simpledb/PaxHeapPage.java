@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Iterator;
+
+/**
+ * PaxHeapPage is a HeapPage that lays its tuples out column by column
+ * (Partition Attributes Across). The page has the same slot header and the
+ * same number of slots as a HeapPage, but the header is followed by one
+ * minipage per field instead of one record per slot: minipage j holds field
+ * j of every slot, each in Type.getLen() bytes, and empty slots are zeroes.
+ * <p>
+ * A scan that reads only some of the fields touches only their minipages.
+ * Fields are decoded lazily, as in HeapPage; when the caller says which
+ * columns it needs (see {@link #iterator(int[])}) they are decoded one
+ * minipage at a time before the first tuple is returned.
+ *
+ * @see PaxHeapFile
+ */
+public class PaxHeapPage extends HeapPage {
+
+    /**
+     * Create a PaxHeapPage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public PaxHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HeapPage getBeforeImage() {
+        try {
+            return new PaxHeapPage(pid, beforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    HeapPage pageOf(byte[] data) throws IOException {
+        return new PaxHeapPage(pid, data);
+    }
+
+    /** Returns the offset within the page data of the minipage of a field. */
+    private int minipageOffset(int field) {
+        return header.length + numSlots * td.getFieldOffset(field);
+    }
+
+    int fieldOffset(int slotId, int field) {
+        return minipageOffset(field) + slotId * td.getFieldType(field).getLen();
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, one
+     * minipage per field.
+     *
+     * @see #PaxHeapPage
+     */
+    public byte[] getPageData() {
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(header);
+            for (int j = 0; j < td.numFields(); j++) {
+                int fieldLen = td.getFieldType(j).getLen();
+                for (int i = 0; i < numSlots; i++) {
+                    if (!isSlotUsed(i))
+                        dos.write(new byte[fieldLen]);
+                    else if (tuples[i] == null)
+                        dos.write(data, fieldOffset(i, j), fieldLen);
+                    else
+                        tuples[i].serializeField(j, dos);
+                }
+            }
+            dos.write(new byte[len - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // writing to memory; this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return an iterator over all tuples on this page
+     * @param columns the fields the caller is going to read, or null if it
+     * may read all of them; these are decoded a minipage at a time up front,
+     * and any other field is decoded if it is read
+     */
+    public Iterator<Tuple> iterator(int[] columns) {
+        Iterator<Tuple> it = super.iterator(columns);
+        if (columns != null) {
+            for (int c : columns) {
+                for (int i = 0; i < numSlots; i++) {
+                    if (isSlotUsed(i))
+                        getTuple(i).getField(c);
+                }
+            }
+        }
+        return it;
+    }
+}
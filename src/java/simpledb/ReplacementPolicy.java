@@ -0,0 +1,48 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool should evict when it
+ * runs out of frames. The BufferPool reports every page that enters or
+ * leaves the cache and every cache hit; the policy keeps whatever per-frame
+ * bookkeeping it needs (reference bits, access history, ...) and answers
+ * {@link #chooseVictim()} when an eviction is required.
+ * <p>
+ * Implementations must be safe to call from multiple threads, since
+ * BufferPool.getPage is not synchronized.
+ *
+ * @see BufferPool
+ * @see ClockReplacementPolicy
+ * @see LRUKReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page is brought into the buffer pool.
+     *
+     * @param pid the id of the page that now occupies a frame
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called when a page that is already resident is requested again.
+     *
+     * @param pid the id of the page that was hit
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool, either because it was
+     * evicted or because it was discarded.
+     *
+     * @param pid the id of the page that no longer occupies a frame
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. The page is not removed
+     * from the policy's bookkeeping until {@link #pageRemoved} is called.
+     *
+     * @return the id of the victim page, or null if no page is resident
+     */
+    public PageId chooseVictim();
+}
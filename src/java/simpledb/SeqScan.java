@@ -14,7 +14,11 @@ public class SeqScan implements DbIterator {
     private TransactionId tid;
     private int tableId;
     private String tableAlias;
+    private int[] columns;
     private DbFileIterator fileIterator;
+    // false once the scan is known to read for a query that writes; see
+    // readForWrite
+    private boolean readOnlyQuery = true;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -32,10 +36,57 @@ public class SeqScan implements DbIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan over the specified table that tells the
+     * table which fields the operators above it are going to read. Tuples
+     * still have every field of the table, but tables that store columns
+     * separately (see {@link PaxHeapFile}) read the other fields only if
+     * they are asked for.
+     *
+     * @param columns
+     *            indexes of the fields that will be read, or null for all
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        fileIterator = Database.getCatalog().getDbFile(tableid).iterator(tid);
+        this.columns = columns;
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (columns != null && file instanceof HeapFile)
+            fileIterator = ((HeapFile) file).iterator(tid, columns);
+        else
+            fileIterator = file.iterator(tid);
+    }
+
+    /**
+     * Tell every scan in a plan, before it is opened, that the plan writes.
+     * The scans then lock the pages they read one by one, and escalation
+     * decides whether that becomes a table lock, instead of locking their
+     * whole table S, which the writer's IX on the same table would turn
+     * into SIX, blocking inserters and other writers until it completes.
+     * Delete has its scans read pages READ_WRITE, so that two deletes from
+     * one table wait for each other at the first page, rather than both
+     * reading it and deadlocking when they upgrade their locks to delete.
+     *
+     * @param plan the child of an Insert or Delete
+     * @param perm the permissions to read pages with
+     */
+    static void readForWrite(DbIterator plan, Permissions perm) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            scan.readOnlyQuery = false;
+            DbFile file = Database.getCatalog().getDbFile(scan.tableId);
+            if (file instanceof HeapFile)
+                scan.fileIterator = ((HeapFile) file).iterator(scan.tid, scan.columns, perm);
+        } else if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (child != null)
+                    readForWrite(child, perm);
+            }
+        }
     }
 
     /**
@@ -75,7 +126,16 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Opens the scan. A scan for a query that only reads locks the whole
+     * table shared first: one lock covers every page the scan reads,
+     * instead of one lock per page.
+     *
+     * @see #readForWrite
+     */
     public void open() throws DbException, TransactionAbortedException {
+        if (readOnlyQuery)
+            Database.getBufferPool().lockTable(tid, tableId, LockMode.S);
         fileIterator.open();
     }
 
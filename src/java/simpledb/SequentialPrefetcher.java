@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SequentialPrefetcher issues asynchronous read-ahead for a scan over a
+ * heap file. The scan reports each page it moves to; while the pages arrive
+ * in order, the prefetcher keeps a window of the next K pages being read
+ * into the BufferPool on the pool's background I/O thread, so the scan
+ * finds them already cached. Any non-sequential access resets the window.
+ * <p>
+ * K adapts to how fast the scan consumes pages relative to how long a page
+ * takes to read: a scan that consumes pages faster than they are read gets a
+ * larger window (up to {@link #MAX_WINDOW}, and never more than a quarter of
+ * the buffer pool), while a slow consumer keeps the minimum window.
+ *
+ * @see HeapFile.HeapFileIterator
+ * @see BufferPool#prefetchPage
+ */
+public class SequentialPrefetcher {
+
+    /** Number of pages read ahead when a sequential scan is first detected. */
+    public static final int MIN_WINDOW = 4;
+
+    /** Upper bound on the number of pages read ahead. */
+    public static final int MAX_WINDOW = 64;
+
+    private final int tableId;
+    private final int numPages;
+    private final int maxWindow;
+
+    private int lastPage;
+    private int prefetchedUpTo;
+    private int window;
+    private long lastAccessNanos;
+
+    // exponentially weighted averages, in nanoseconds per page
+    private double consumeNanos;
+    private volatile double readNanos;
+
+    private final AtomicBoolean inFlight;
+
+    /**
+     * @param tableId the table being scanned
+     * @param numPages the number of pages in the table
+     * @param poolPages the capacity of the buffer pool, in pages
+     */
+    public SequentialPrefetcher(int tableId, int numPages, int poolPages) {
+        this.tableId = tableId;
+        this.numPages = numPages;
+        this.maxWindow = Math.max(0, Math.min(MAX_WINDOW, poolPages / 4));
+        this.inFlight = new AtomicBoolean(false);
+        reset(-1);
+    }
+
+    private void reset(int pageNo) {
+        lastPage = pageNo;
+        prefetchedUpTo = pageNo;
+        window = Math.min(MIN_WINDOW, maxWindow);
+        lastAccessNanos = System.nanoTime();
+    }
+
+    /** @return the current read-ahead window, in pages */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Called by the scan before it fetches the specified page.
+     */
+    public void pageAccessed(int pageNo) {
+        long now = System.nanoTime();
+        if (pageNo != lastPage + 1) {
+            reset(pageNo);
+            return;
+        }
+        double elapsed = now - lastAccessNanos;
+        consumeNanos = consumeNanos == 0 ? elapsed : 0.75 * consumeNanos + 0.25 * elapsed;
+        lastAccessNanos = now;
+        lastPage = pageNo;
+
+        // only a sequential scan that is past its first page reads ahead
+        if (pageNo == 0 || maxWindow == 0)
+            return;
+        adaptWindow();
+        if (prefetchedUpTo - pageNo > window / 2 || prefetchedUpTo >= numPages - 1)
+            return;
+        if (!inFlight.compareAndSet(false, true))
+            return;
+
+        final int from = Math.max(prefetchedUpTo, pageNo) + 1;
+        final int to = Math.min(numPages - 1, pageNo + window);
+        prefetchedUpTo = to;
+        Database.getBufferPool().submitReadAhead(new Runnable() {
+            public void run() {
+                try {
+                    BufferPool pool = Database.getBufferPool();
+                    for (int i = from; i <= to; i++) {
+                        long start = System.nanoTime();
+                        if (pool.prefetchPage(new HeapPageId(tableId, i)))
+                            pageRead(System.nanoTime() - start);
+                    }
+                } finally {
+                    inFlight.set(false);
+                }
+            }
+        });
+    }
+
+    /** Record how long reading a page ahead took. */
+    void pageRead(long nanos) {
+        double read = nanos;
+        readNanos = readNanos == 0 ? read : 0.75 * readNanos + 0.25 * read;
+    }
+
+    /**
+     * Size the window so that the pages being read cover the time the scan
+     * needs to consume them.
+     */
+    private void adaptWindow() {
+        if (consumeNanos <= 0 || readNanos <= 0)
+            return;
+        double ratio = readNanos / consumeNanos;
+        int target = (int) Math.ceil(MIN_WINDOW * ratio);
+        window = Math.max(Math.min(MIN_WINDOW, maxWindow), Math.min(maxWindow, target));
+    }
+}
@@ -91,6 +91,13 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("benchmark")) {
+            try {
+                ConcurrencyBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
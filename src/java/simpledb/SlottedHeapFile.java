@@ -0,0 +1,54 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * SlottedHeapFile is a HeapFile whose pages are SlottedHeapPages, storing
+ * tuples in variable-length format. Tables with many short strings take far
+ * fewer pages this way than with fixed-length HeapPages, which pad every
+ * string to Type.STRING_LEN bytes.
+ * <p>
+ * Tables are stored in this mode when their catalog entry is annotated with
+ * <code>slotted</code>; see {@link Catalog#loadSchema}. An existing heap
+ * file can be rewritten in this format with
+ * {@link HeapFileEncoder#convertToSlotted}.
+ */
+public class SlottedHeapFile extends HeapFile {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    protected HeapPage createPage(HeapPageId pid, byte[] data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    int pageHeaderSize() {
+        return SlottedHeapPage.HEADER_SIZE;
+    }
+
+    boolean headerHasSpace(byte[] header) {
+        return SlottedHeapPage.hasSpace(header, getTupleDesc());
+    }
+
+    /**
+     * The space a deleted variable-length tuple frees may be taken by
+     * another, so a slotted page could not put it back if its transaction
+     * aborted; slotted files lock whole pages.
+     */
+    protected boolean supportsRecordLocks() {
+        return false;
+    }
+}
@@ -0,0 +1,316 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedHeapPage is a HeapPage that stores tuples in variable-length
+ * format, so strings take only as many bytes as they have characters
+ * instead of always Type.STRING_LEN.
+ * <p>
+ * The page begins with an 8 byte header: the number of entries in the slot
+ * directory and the number of bytes used by the directory and the tuples.
+ * The slot directory follows, with one entry of two unsigned shorts per
+ * slot: the offset of the tuple within the page and its length, where a
+ * length of 0 marks an empty slot. Tuples are packed at the end of the
+ * page, growing towards the directory; each one is its fields written with
+ * {@link Type#serializeVariable}. A page of all zeroes is a valid empty
+ * page, so {@link HeapPage#createEmptyPageData} works for this format too.
+ * Page sizes above 65536 bytes are not supported.
+ * <p>
+ * A slot's number is its index in the directory, so record ids stay valid
+ * as other tuples are inserted and deleted. Tuples are decoded from the
+ * page data when the iterator reaches them, and the page is compacted every
+ * time it is written out.
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** Number of bytes in the page header, before the slot directory. */
+    public static final int HEADER_SIZE = 8;
+
+    /** Number of bytes in each slot directory entry. */
+    public static final int SLOT_SIZE = 4;
+
+    // offset within data of each tuple that has not been decoded yet
+    private int[] slotOffset;
+    // variable-length size of the tuple in each slot, or 0 if it is empty
+    private int[] slotLen;
+    private int usedBytes;
+    private final int minTupleLen;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk,
+     * in the format described above.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+        this.minTupleLen = minTupleLen(td);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        numSlots = buf.getInt(0);
+        if (numSlots < 0 || HEADER_SIZE + numSlots * SLOT_SIZE > data.length)
+            throw new IOException("corrupt slot directory on page " + id.pageNumber());
+        tuples = new Tuple[Math.max(numSlots, 8)];
+        slotOffset = new int[tuples.length];
+        slotLen = new int[tuples.length];
+        usedBytes = numSlots * SLOT_SIZE;
+        for (int i = 0; i < numSlots; i++) {
+            int entry = HEADER_SIZE + i * SLOT_SIZE;
+            slotOffset[i] = buf.getShort(entry) & 0xFFFF;
+            slotLen[i] = buf.getShort(entry + 2) & 0xFFFF;
+            usedBytes += slotLen[i];
+        }
+    }
+
+    /**
+     * @return the smallest number of bytes a tuple of the specified schema
+     *         takes in variable-length format
+     */
+    static int minTupleLen(TupleDesc td) {
+        int len = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            len += td.getFieldType(i) == Type.STRING_TYPE ? 2 : td.getFieldType(i).getLen();
+        return len;
+    }
+
+    /**
+     * Returns true if a page whose header is given could hold at least one
+     * more tuple of the specified schema. Used to rebuild the free space map
+     * without decoding pages.
+     *
+     * @param header the first HEADER_SIZE bytes of the page
+     */
+    static boolean hasSpace(byte[] header, TupleDesc td) {
+        int used = ByteBuffer.wrap(header).getInt(4);
+        return BufferPool.getPageSize() - HEADER_SIZE - used >= minTupleLen(td) + SLOT_SIZE;
+    }
+
+    private int freeBytes() {
+        return BufferPool.getPageSize() - HEADER_SIZE - usedBytes;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(pid, beforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    HeapPage pageOf(byte[] data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    /**
+     * Returns false: redoing a slot-level record would have to fill a slot
+     * past the end of the directory, so changes are logged as page images.
+     */
+    boolean logsSlots() {
+        return false;
+    }
+
+    private static byte[] encode(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                td.getFieldType(i).serializeVariable(t.getField(i), dos);
+        } catch (IOException e) {
+            // writing to memory; this really shouldn't happen
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    private static int encodedLen(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int len = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            len += td.getFieldType(i).getVariableLen(t.getField(i));
+        return len;
+    }
+
+    /**
+     * Build a page holding the given tuples, each already in
+     * variable-length format. Entry i of tuples goes in slot i; null
+     * entries are empty slots.
+     *
+     * @throws IllegalArgumentException if the tuples do not fit on a page
+     */
+    static byte[] pack(List<byte[]> tuples) {
+        int pageSize = BufferPool.getPageSize();
+        byte[] page = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        int end = pageSize;
+        for (int i = 0; i < tuples.size(); i++) {
+            byte[] t = tuples.get(i);
+            int entry = HEADER_SIZE + i * SLOT_SIZE;
+            if (t == null)
+                continue;
+            end -= t.length;
+            if (end < entry + SLOT_SIZE)
+                throw new IllegalArgumentException("tuples do not fit on one page");
+            System.arraycopy(t, 0, page, end, t.length);
+            buf.putShort(entry, (short) end);
+            buf.putShort(entry + 2, (short) t.length);
+        }
+        buf.putInt(0, tuples.size());
+        buf.putInt(4, tuples.size() * SLOT_SIZE + pageSize - end);
+        return page;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the tuples compacted at the end of the page.
+     *
+     * @see #SlottedHeapPage
+     */
+    public byte[] getPageData() {
+        List<byte[]> packed = new ArrayList<byte[]>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            if (slotLen[i] == 0)
+                packed.add(null);
+            else if (tuples[i] == null)
+                packed.add(Arrays.copyOfRange(data, slotOffset[i], slotOffset[i] + slotLen[i]));
+            else
+                packed.add(encode(tuples[i]));
+        }
+        return pack(packed);
+    }
+
+    /**
+     * Delete the tuple with the specified record id from the page.
+     * @throws DbException if the record is not on this page, or its slot is
+     *         already empty.
+     */
+    public void deleteTuple(RecordId rid) throws DbException {
+        if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.tupleno())) {
+            throw new DbException("this tuple is not on this page, or tuple slot is already empty");
+        }
+        int slot = rid.tupleno();
+        captureBeforeImage();
+        usedBytes -= slotLen[slot];
+        slotLen[slot] = 0;
+        tuples[slot] = null;
+        // trailing empty slots are dropped from the directory
+        while (numSlots > 0 && slotLen[numSlots - 1] == 0) {
+            numSlots--;
+            usedBytes -= SLOT_SIZE;
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot or in a
+     * new slot at the end of the directory.
+     * @throws DbException if the tuple does not fit or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
+        int slot = 0;
+        while (slot < numSlots && slotLen[slot] != 0)
+            slot++;
+        int len = encodedLen(t);
+        int needed = len + (slot == numSlots ? SLOT_SIZE : 0);
+        if (needed > freeBytes())
+            throw new DbException("the page is full (not enough free space)");
+
+        captureBeforeImage();
+        if (slot == numSlots) {
+            if (slot == tuples.length) {
+                tuples = Arrays.copyOf(tuples, slot * 2);
+                slotOffset = Arrays.copyOf(slotOffset, slot * 2);
+                slotLen = Arrays.copyOf(slotLen, slot * 2);
+            }
+            numSlots++;
+        }
+        tuples[slot] = t;
+        slotLen[slot] = len;
+        usedBytes += needed;
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        int slot = 0;
+        while (slot < numSlots && slotLen[slot] != 0)
+            slot++;
+        return encodedLen(t) + (slot == numSlots ? SLOT_SIZE : 0) <= freeBytes();
+    }
+
+    /**
+     * Returns the number of tuples of the smallest possible size that would
+     * still fit on this page.
+     */
+    public int getNumEmptySlots() {
+        return Math.max(0, freeBytes() / (minTupleLen + SLOT_SIZE));
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && slotLen[i] != 0;
+    }
+
+    // synchronized because readers holding READ_ONLY locks share the page,
+    // and the fields are set after the tuple is created
+    synchronized Tuple getTuple(int slot) {
+        Tuple t = tuples[slot];
+        if (t == null) {
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, slot));
+            DataInputStream dis = new DataInputStream(
+                    new ByteArrayInputStream(data, slotOffset[slot], slotLen[slot]));
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    t.setField(j, td.getFieldType(j).parseVariable(dis));
+            } catch (java.text.ParseException e) {
+                e.printStackTrace();
+                throw new NoSuchElementException("parsing error!");
+            }
+            tuples[slot] = t;
+        }
+        return t;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     * @param columns ignored; tuples are stored whole, so they are decoded whole
+     */
+    public Iterator<Tuple> iterator(int[] columns) {
+        // as in HeapPage, slots filled after the iterator is created are skipped
+        final int[] lens = Arrays.copyOf(slotLen, numSlots);
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < lens.length && !(lens[i] != 0 && isSlotUsed(i)))
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return next < lens.length;
+            }
+
+            public Tuple next() {
+                if (next >= lens.length)
+                    throw new NoSuchElementException();
+                Tuple t = getTuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.awt.event.MouseAdapter;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -56,6 +57,10 @@ public class TableStats {
             int tableid = tableIt.next();
             TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
             setTableStats(Database.getCatalog().getTableName(tableid), s);
+            DbFile f = Database.getCatalog().getDbFile(tableid);
+            if (f instanceof CompressedHeapFile)
+                System.out.println(Database.getCatalog().getTableName(tableid) + ": "
+                        + ((CompressedHeapFile) f).getCompressionStats());
         }
         System.out.println("Done.");
     }
@@ -84,6 +89,18 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, null);
+    }
+
+    /**
+     * Create a new TableStats object for a table, scanning it in the
+     * specified transaction, which sees its own changes and keeps its
+     * locks; used by BulkLoader, whose transaction holds the table X.
+     *
+     * @param tid the transaction to scan the table in, or null to scan it
+     *            in a transaction of its own
+     */
+    TableStats(int tableid, int ioCostPerPage, TransactionId tid) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -97,8 +114,8 @@ public class TableStats {
         mival=new HashMap<>();
         mxval=new HashMap<>();
         Histogram=new HashMap<>();
-        Transaction t= new Transaction();
-        DbFileIterator iter= table.iterator(t.getId());
+        TransactionId scanTid = tid != null ? tid : new TransactionId();
+        DbFileIterator iter= table.iterator(scanTid);
         TupleDesc td= table.getTupleDesc();
         tuples_num=0;
         try{
@@ -162,6 +179,17 @@ public class TableStats {
         catch (Exception e) {
             e.printStackTrace();
         }
+        finally {
+            // release the scan's locks, so the table stays usable
+            try {
+                if (tid == null)
+                    Database.getBufferPool().transactionComplete(scanTid);
+                else
+                    iter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -10,14 +10,54 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean readOnly = false;
+    private volatile boolean synchronousCommit = true;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Declare the transaction read-only, before it starts. A read-only
+     * transaction reads what was committed when it started, without taking
+     * locks, and may not write.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public void setReadOnly(boolean readOnly) {
+        if (started)
+            throw new IllegalStateException("transaction has already started");
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Sets whether commit waits for the log to be forced to disk, as it
+     * does by default. Without, commit returns once its records are
+     * written to the log, which is forced in the background within the
+     * log's asynchronous commit interval; a crash of the machine in that
+     * window may lose the transaction. The pages it changed are left in
+     * the buffer pool, to be written once their records are forced.
+     *
+     * @see LogFile#setAsyncCommitInterval
+     * @see BufferPool#flushPages(TransactionId, boolean)
+     */
+    public void setSynchronousCommit(boolean synchronousCommit) {
+        this.synchronousCommit = synchronousCommit;
+    }
+
+    public boolean isSynchronousCommit() {
+        return synchronousCommit;
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly)
+            Database.getBufferPool().beginSnapshot(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -48,13 +88,13 @@ public class Transaction {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                Database.getBufferPool().flushPages(tid, synchronousCommit);
+                Database.getLogFile().logCommit(tid, synchronousCommit);
             }
 
             try {
 
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                Database.getBufferPool().endTransaction(tid, !abort); // release locks
 
             } catch (IOException e) {
                 e.printStackTrace();
@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -13,9 +16,16 @@ public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    private TupleDesc tupleDesc;
+    private final TupleDesc tupleDesc;
     private RecordId recordId;
-    private Field[] fields;
+    private final Field[] fields;
+
+    // page that unset fields are decoded from on first access, and the slot
+    // the tuple was read from, or null if every field is set explicitly.
+    // These are final so that readers sharing a page (under READ_ONLY locks)
+    // always see a fully constructed tuple.
+    private final transient HeapPage source;
+    private final transient int sourceSlot;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -25,8 +35,23 @@ public class Tuple implements Serializable {
      *            instance with at least one field.
      */
     public Tuple(TupleDesc td) {
+        this(td, null, null, 0);
+    }
+
+    /**
+     * Create a tuple whose fields are decoded lazily from the page data of
+     * the specified slot. Fields are decoded one at a time, when first read,
+     * so that a caller examining only a few fields does not pay for the
+     * rest.
+     *
+     * @see HeapPage#iterator
+     */
+    Tuple(TupleDesc td, RecordId rid, HeapPage source, int slot) {
         this.tupleDesc = td;
-        fields = new Field[td.numFields()];
+        this.fields = new Field[td.numFields()];
+        this.recordId = rid;
+        this.source = source;
+        this.sourceSlot = slot;
     }
 
     /**
@@ -78,7 +103,12 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         if (i >= 0 && i < fields.length) {
-            return fields[i];
+            Field f = fields[i];
+            if (f == null && source != null) {
+                f = tupleDesc.getFieldType(i).parse(source.data, source.fieldOffset(sourceSlot, i));
+                fields[i] = f;
+            }
+            return f;
         } else {
             throw new IllegalArgumentException("i is not a valid index");
         }
@@ -93,6 +123,7 @@ public class Tuple implements Serializable {
      * where \t is any whitespace, except newline, and \n is a newline
      */
     public String toString() {
+        decodeAll();
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < fields.length; i++) {
             if (i == fields.length - 1) {
@@ -109,6 +140,43 @@ public class Tuple implements Serializable {
      *        An iterator which iterates over all the fields of this tuple
      * */
     public Iterator<Field> fields() {
+        decodeAll();
         return Arrays.asList(fields).iterator();
     }
+
+    /**
+     * Write this tuple in the fixed-length format read by
+     * {@link Type#parse}. Fields that have not been decoded are copied
+     * straight from the page they were read from.
+     */
+    void serialize(DataOutputStream dos) throws IOException {
+        for (int i = 0; i < fields.length; i++)
+            serializeField(i, dos);
+    }
+
+    /**
+     * Write the ith field of this tuple in the fixed-length format read by
+     * {@link Type#parse}, copying it from the page it was read from if it
+     * has not been decoded.
+     */
+    void serializeField(int i, DataOutputStream dos) throws IOException {
+        if (fields[i] == null && source != null) {
+            dos.write(source.data, source.fieldOffset(sourceSlot, i),
+                    tupleDesc.getFieldType(i).getLen());
+        } else {
+            fields[i].serialize(dos);
+        }
+    }
+
+    private void decodeAll() {
+        if (source == null)
+            return;
+        for (int i = 0; i < fields.length; i++)
+            getField(i);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
+    }
 }
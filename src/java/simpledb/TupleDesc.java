@@ -38,6 +38,9 @@ public class TupleDesc implements Serializable {
     // List of TDItems
     private List<TDItem> tdItemList;
 
+    // byte offset of each field within a serialized tuple, computed on first use
+    private transient int[] fieldOffsets;
+
     /**
      * @return
      *        An iterator which iterates over all the field TDItems
@@ -156,6 +159,26 @@ public class TupleDesc implements Serializable {
         return totalSizeInBytes;
     }
 
+    /**
+     * @return the byte offset of the ith field within a serialized tuple of
+     *         this TupleDesc, i.e. the total length of the fields before it.
+     * @param i
+     *            index of the field. It must be a valid index.
+     */
+    public int getFieldOffset(int i) {
+        int[] offsets = fieldOffsets;
+        if (offsets == null) {
+            offsets = new int[tdItemList.size()];
+            int off = 0;
+            for (int j = 0; j < offsets.length; j++) {
+                offsets[j] = off;
+                off += tdItemList.get(j).fieldType.getLen();
+            }
+            fieldOffsets = offsets;
+        }
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
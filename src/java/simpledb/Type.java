@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.util.NoSuchElementException;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,29 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new IntField(((data[offset] & 0xFF) << 24)
+                    | ((data[offset + 1] & 0xFF) << 16)
+                    | ((data[offset + 2] & 0xFF) << 8)
+                    | (data[offset + 3] & 0xFF));
+        }
+
+        @Override
+        public int getVariableLen(Field f) {
+            return 4;
+        }
+
+        @Override
+        public void serializeVariable(Field f, DataOutputStream dos) throws IOException {
+            f.serialize(dos);
+        }
+
+        @Override
+        public Field parseVariable(DataInputStream dis) throws ParseException {
+            return parse(dis);
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +66,31 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public int getVariableLen(Field f) {
+            return 2 + Math.min(((StringField) f).getValue().length(), STRING_LEN);
+        }
+
+        @Override
+        public void serializeVariable(Field f, DataOutputStream dos) throws IOException {
+            String s = ((StringField) f).getValue();
+            if (s.length() > STRING_LEN)
+                s = s.substring(0, STRING_LEN);
+            dos.writeShort(s.length());
+            dos.writeBytes(s);
+        }
+
+        @Override
+        public Field parseVariable(DataInputStream dis) throws ParseException {
+            try {
+                byte bs[] = new byte[dis.readUnsignedShort()];
+                dis.readFully(bs);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +109,44 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents
+   *   are the getLen() bytes of data starting at offset, in the format
+   *   written by {@link Field#serialize}.
+   * @param data the buffer holding the serialized field
+   * @param offset the position of the field within data
+   */
+    public Field parse(byte[] data, int offset) {
+        try {
+            return parse(new DataInputStream(new ByteArrayInputStream(data, offset, getLen())));
+        } catch (ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+  /**
+   * @return the number of bytes the specified field of this type occupies
+   *   in the variable-length format written by serializeVariable.
+   * @see SlottedHeapPage
+   */
+    public abstract int getVariableLen(Field f);
+
+  /**
+   * Write a field of this type in variable-length format: integers as
+   *   in {@link Field#serialize}, strings as a two byte length followed by
+   *   the characters, without padding.
+   * @param f the field to write
+   * @param dos the stream to write to
+   */
+    public abstract void serializeVariable(Field f, DataOutputStream dos) throws IOException;
+
+  /**
+   * @return a Field object of the same type as this object read from the
+   *   variable-length format written by serializeVariable.
+   * @param dis The input stream to read from
+   * @throws ParseException if the data read from the input stream is not
+   *   of the appropriate type.
+   */
+    public abstract Field parseVariable(DataInputStream dis) throws ParseException;
+
 }
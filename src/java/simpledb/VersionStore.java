@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps what read-only transactions need to read heap pages
+ * as of their snapshot, without locking them: the committed images of
+ * pages that have been changed by commits since the oldest running
+ * snapshot started.
+ * <p>
+ * Commits are numbered. A snapshot is the number of the last commit when
+ * it started, and sees every page as the last commit numbered no higher
+ * left it. For each page changed by a later commit the store keeps a chain
+ * of the images the page's commits replaced, newest first, each tagged
+ * with the commit it dates from; images no running snapshot can ask for
+ * are dropped, so while no snapshot runs the store holds nothing.
+ * <p>
+ * The committed image of a page that a running writer has changed is its
+ * before image while the page is cached. If the writer's change is written
+ * out and the page evicted (a steal), the before image is kept here until
+ * the writer completes.
+ * <p>
+ * Commits are published and snapshots started under this object's monitor,
+ * so a snapshot sees either all or none of a commit's pages. Readers look
+ * images up without it.
+ *
+ * @see BufferPool#beginSnapshot
+ */
+public class VersionStore {
+
+    /** An image of a page as committed by commit number from. */
+    private static final class Version {
+        final long from;
+        final byte[] data;
+        volatile Version older;
+
+        Version(long from, byte[] data, Version older) {
+            this.from = from;
+            this.data = data;
+            this.older = older;
+        }
+    }
+
+    /** The images a page's commits replaced, and the commit its current contents date from. */
+    private static final class Chain {
+        volatile long currentFrom;
+        volatile Version older;
+    }
+
+    private final Map<PageId, Chain> chains = new ConcurrentHashMap<>();
+    private final Map<PageId, byte[]> stolen = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // snapshot number -> how many running snapshots have it; guarded by this
+    private final TreeMap<Long, Integer> active = new TreeMap<>();
+    private long lastCommit;
+
+    /**
+     * Start a snapshot for the specified transaction, which sees what was
+     * committed before now.
+     *
+     * @return the snapshot's commit number
+     */
+    public synchronized long begin(TransactionId tid) {
+        long snapshot = lastCommit;
+        if (snapshots.putIfAbsent(tid, snapshot) == null)
+            active.merge(snapshot, 1, Integer::sum);
+        return snapshots.get(tid);
+    }
+
+    /** End the snapshot of the specified transaction, if it has one. */
+    public synchronized void end(TransactionId tid) {
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot == null)
+            return;
+        if (active.merge(snapshot, -1, Integer::sum) == 0) {
+            active.remove(snapshot);
+            prune();
+        }
+    }
+
+    /** @return the snapshot of the specified transaction, or null if it reads under locks */
+    public Long snapshotOf(TransactionId tid) {
+        return tid == null || snapshots.isEmpty() ? null : snapshots.get(tid);
+    }
+
+    /** @return the number the next commit will publish its pages under */
+    synchronized long nextCommit() {
+        return lastCommit + 1;
+    }
+
+    /**
+     * The pages of commit number commit have all been published; snapshots
+     * started from now on see them.
+     */
+    synchronized void committed(long commit) {
+        lastCommit = commit;
+    }
+
+    /**
+     * Record that a commit replaced the specified committed image of a page.
+     * Called, holding this monitor and the page's, as the commit publishes
+     * the page.
+     */
+    void retire(PageId pid, byte[] before, long commit) {
+        assert Thread.holdsLock(this);
+        if (active.isEmpty() || active.firstKey() >= commit) {
+            // every snapshot sees this commit
+            chains.remove(pid);
+            return;
+        }
+        Chain chain = chains.computeIfAbsent(pid, k -> new Chain());
+        chain.older = new Version(chain.currentFrom, before, chain.older);
+        chain.currentFrom = commit;
+    }
+
+    /**
+     * Keep the committed image of a page whose uncommitted changes were
+     * written out as it is evicted. An image kept earlier in the same
+     * transaction is not replaced.
+     */
+    void keepStolen(PageId pid, byte[] committed) {
+        stolen.putIfAbsent(pid, committed);
+    }
+
+    /** @return the committed image kept for an evicted page, or null */
+    byte[] stolenImage(PageId pid) {
+        return stolen.get(pid);
+    }
+
+    /** The writer of an evicted page completed; its image is no longer needed. */
+    void forgetStolen(PageId pid) {
+        stolen.remove(pid);
+    }
+
+    /**
+     * Returns the bytes of a page as of the specified snapshot if the page
+     * has changed since, or null if its committed contents are what the
+     * snapshot sees. Called holding the monitor of the cached page.
+     */
+    byte[] imageAsOf(PageId pid, long snapshot) {
+        byte[] image = versionAsOf(pid, snapshot);
+        if (image != null)
+            return image;
+        image = stolen.get(pid);
+        if (image != null)
+            return image;
+        // a commit of an evicted page retires its image before forgetting it
+        return versionAsOf(pid, snapshot);
+    }
+
+    private byte[] versionAsOf(PageId pid, long snapshot) {
+        Chain chain = chains.get(pid);
+        if (chain == null || chain.currentFrom <= snapshot)
+            return null;
+        for (Version v = chain.older; v != null; v = v.older) {
+            if (v.from <= snapshot)
+                return v.data;
+        }
+        return null;
+    }
+
+    /** Drop the images the oldest running snapshot no longer needs. */
+    private void prune() {
+        if (active.isEmpty()) {
+            chains.clear();
+            return;
+        }
+        long oldest = active.firstKey();
+        chains.values().removeIf(chain -> {
+            if (chain.currentFrom <= oldest)
+                return true;
+            for (Version v = chain.older; v != null; v = v.older) {
+                if (v.from <= oldest) {
+                    v.older = null;
+                    break;
+                }
+            }
+            return false;
+        });
+    }
+
+    /** @return the number of page images kept for snapshots and steals */
+    public synchronized int size() {
+        int n = stolen.size();
+        for (Chain chain : chains.values()) {
+            for (Version v = chain.older; v != null; v = v.older)
+                n++;
+        }
+        return n;
+    }
+}
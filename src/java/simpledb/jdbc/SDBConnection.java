@@ -2,6 +2,7 @@ package simpledb.jdbc;
 
 import simpledb.Parser;
 
+import java.io.Reader;
 import java.sql.*;
 import java.util.Map;
 import java.util.Properties;
@@ -11,6 +12,8 @@ public class SDBConnection implements Connection {
 
     private Parser parser;
     private boolean autocommit = true;
+    private boolean readOnly = false;
+    private final Properties clientInfo = new Properties();
 
     public SDBConnection() {
         this.parser = new Parser();
@@ -36,6 +39,25 @@ public class SDBConnection implements Connection {
         return null;
     }
 
+    /**
+     * Bulk load CSV data into a table, as a <code>COPY</code> statement
+     * does, without going through INSERT statements. The load is part of
+     * the current transaction if auto-commit is off, and is committed on
+     * its own otherwise.
+     *
+     * @param table the name of the table to load into
+     * @param csv one row per line, with comma separated fields
+     * @return the number of rows loaded
+     * @see simpledb.BulkLoader
+     */
+    public long copyIn(String table, Reader csv) throws SQLException {
+        try {
+            return parser.copyIn(table, csv, ',');
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+    }
+
     @Override
     public boolean getAutoCommit() throws SQLException {
         return autocommit;
@@ -45,7 +67,8 @@ public class SDBConnection implements Connection {
     public void setAutoCommit(boolean autoCommit) throws SQLException {
         if (!autoCommit) {
             autocommit = autoCommit;
-            parser.processNextStatement("SET TRANSACTION");
+            parser.processNextStatement(readOnly ? "SET TRANSACTION READ ONLY;"
+                    : "SET TRANSACTION READ WRITE;");
         } else
             autocommit = autoCommit;
     }
@@ -79,12 +102,17 @@ public class SDBConnection implements Connection {
 
     @Override
     public boolean isReadOnly() throws SQLException {
-        return false;
+        return readOnly;
     }
 
+    /**
+     * Read-only connections run queries from a snapshot, without locking.
+     * Takes effect from the next transaction.
+     */
     @Override
     public void setReadOnly(boolean readOnly) throws SQLException {
-
+        this.readOnly = readOnly;
+        parser.setReadOnly(readOnly);
     }
 
     @Override
@@ -227,24 +255,37 @@ public class SDBConnection implements Connection {
         return false;
     }
 
+    /**
+     * Client info properties are session settings, as <code>SET</code>
+     * statements change them: <code>synchronous_commit</code> set to off
+     * lets transactions commit without waiting for the log to be forced.
+     *
+     * @see Parser#setOption
+     */
     @Override
     public void setClientInfo(String name, String value) throws SQLClientInfoException {
-
+        try {
+            parser.setOption(name, value);
+        } catch (simpledb.ParsingException e) {
+            throw new SQLClientInfoException(e.getMessage(), null, e);
+        }
+        clientInfo.setProperty(name, value);
     }
 
     @Override
     public String getClientInfo(String name) throws SQLException {
-        return null;
+        return clientInfo.getProperty(name);
     }
 
     @Override
     public Properties getClientInfo() throws SQLException {
-        return null;
+        return (Properties) clientInfo.clone();
     }
 
     @Override
     public void setClientInfo(Properties properties) throws SQLClientInfoException {
-
+        for (String name : properties.stringPropertyNames())
+            setClientInfo(name, properties.getProperty(name));
     }
 
     @Override
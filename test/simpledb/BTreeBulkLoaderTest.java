@@ -0,0 +1,171 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private long load(double fillFactor, int rows) throws Exception {
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf, fillFactor);
+		// each key appears three times
+		for(int i = 0; i < rows; i++) {
+			loader.add(BTreeUtility.getBTreeTuple(new int[] { i / 3, i }));
+		}
+		return loader.finish();
+	}
+
+	/** Scans the tree in key order and checks every tuple is there once. */
+	private void checkScan(int rows) throws Exception {
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(count / 3, ((IntField) t.getField(0)).getValue());
+			count++;
+		}
+		it.close();
+		assertEquals(rows, count);
+	}
+
+	private BTreePage getRoot() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Leaves are packed full, the last two share their tuples, and the tree
+	 * can be searched and updated afterwards.
+	 */
+	@Test
+	public void packedTree() throws Exception {
+		int perPage = BTreeUtility.getNumTuplesPerPage(2);
+		int rows = perPage * 10 + 100;
+		assertEquals(rows, load(1.0, rows));
+
+		// 11 leaves under one root
+		assertEquals(12, bf.numPages());
+		BTreeInternalPage root = (BTreeInternalPage) getRoot();
+		assertEquals(10, root.getNumEntries());
+		BTreeLeafPage last = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, root.reverseIterator().next().getRightChild(), Permissions.READ_ONLY);
+		assertEquals((perPage + 100) / 2, last.getNumTuples());
+		assertTrue(last.getRightSiblingId() == null);
+		checkScan(rows);
+
+		// duplicates of a key are found across the leaf boundary
+		int key = perPage / 3;
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int found = 0;
+		while(it.hasNext()) {
+			it.next();
+			found++;
+		}
+		it.close();
+		assertEquals(3, found);
+
+		// inserts split the full pages as usual, and deletes still work
+		for(int i = 0; i < 10; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(),
+					BTreeUtility.getBTreeTuple(new int[] { perPage * i / 3, -1 }));
+		}
+		assertTrue(bf.numPages() > 12);
+		DbFileIterator scan = bf.iterator(tid);
+		scan.open();
+		Tuple t = scan.next();
+		scan.close();
+		Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(rows + 9, count);
+	}
+
+	/**
+	 * A lower fill factor leaves room on the pages, and enough tuples build
+	 * more than one internal level.
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		int leafTuples = BTreeUtility.getNumTuplesPerPage(2) / 2;
+		int children = BTreeUtility.getNumEntriesPerPage() / 2 + 1;
+		int rows = leafTuples * children * 2;
+		load(0.5, rows);
+
+		// two full level-one pages under a root, and the root
+		assertEquals(children * 2 + 3, bf.numPages());
+		BTreeInternalPage root = (BTreeInternalPage) getRoot();
+		assertEquals(1, root.getNumEntries());
+		BTreeEntry e = root.iterator().next();
+		BTreeInternalPage left = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, e.getLeftChild(), Permissions.READ_ONLY);
+		assertEquals(children - 1, left.getNumEntries());
+		assertEquals(left.getMaxEntries() - left.getMaxEntries() / 2, left.getNumEmptySlots());
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, left.iterator().next().getLeftChild(), Permissions.READ_ONLY);
+		assertEquals(leafTuples, leaf.getNumTuples());
+		checkScan(rows);
+	}
+
+	/**
+	 * Input out of key order is rejected, as is a file that already has pages.
+	 */
+	@Test
+	public void rejectsBadInput() throws Exception {
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.add(BTreeUtility.getBTreeTuple(new int[] { 5, 0 }));
+		try {
+			loader.add(BTreeUtility.getBTreeTuple(new int[] { 4, 0 }));
+			fail("expected DbException");
+		} catch (DbException e) {
+			// expected
+		}
+		loader.finish();
+		assertFalse(bf.numPages() == 0);
+		try {
+			new BTreeBulkLoader(bf);
+			fail("expected DbException");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bulk", ".dat");
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + ".fsm").deleteOnExit();
+        hf = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "bulkload");
+    }
+
+    private static String csv(int rows, char delimiter) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rows; i++)
+            sb.append(i).append(delimiter).append(2 * i).append('\n');
+        return sb.toString();
+    }
+
+    private int scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        int count = scan(tid);
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private int scan(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(2 * ((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * Loaded tuples are packed onto full pages, written with one LOAD log
+     * record per extent, and the table's statistics are updated.
+     */
+    @Test public void loadPacksPages() throws Exception {
+        hf.setExtentPages(2);
+        Transaction t = new Transaction();
+        t.start();
+        int records = Database.getLogFile().getTotalRecords();
+        BulkLoader loader = new BulkLoader(t.getId(), hf.getId());
+        // 504 tuples fit on a page, so this fills four pages and part of a fifth
+        assertEquals(504 * 4 + 10, loader.addCsv(new StringReader(csv(504 * 4 + 10, ',')), ','));
+        assertEquals(504 * 4 + 10, loader.finish());
+        assertEquals(5, loader.getPagesWritten());
+        assertEquals(3, Database.getLogFile().getTotalRecords() - records);
+        t.commit();
+
+        assertEquals(5, hf.numPages());
+        assertEquals(5L * BufferPool.getPageSize(), file.length());
+        assertEquals(504 * 4 + 10, scan());
+        TableStats stats = TableStats.getTableStats("bulkload");
+        assertNotNull(stats);
+        assertEquals(504 * 4 + 10, stats.totalTuples());
+
+        // inserts fill up the last page before adding a new one
+        TransactionId tid = new TransactionId();
+        Tuple tup = Utility.getHeapTuple(new int[] { 1, 2 });
+        hf.insertTuple(tid, tup);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, tup.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * Aborting the load's transaction leaves the table empty.
+     */
+    @Test public void abortUndoesLoad() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader(t.getId(), hf.getId());
+        loader.addCsv(new StringReader(csv(1000, ',')), ',');
+        loader.finish();
+        assertEquals(1000, scan(t.getId()));
+        t.abort();
+        assertEquals(0, scan());
+    }
+
+    /**
+     * The loader locks the table, so other transactions do not read the
+     * loaded tuples until the load commits.
+     */
+    @Test public void loadLocksTable() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader(t.getId(), hf.getId());
+        loader.addCsv(new StringReader(csv(1000, ',')), ',');
+        loader.finish();
+
+        TransactionId reader = new TransactionId();
+        TestUtil.LockGrabber lg = new TestUtil.LockGrabber(reader,
+                new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        lg.start();
+        Thread.sleep(100);
+        assertFalse(lg.acquired());
+
+        t.commit();
+        lg.join(5000);
+        assertTrue(lg.acquired());
+        Database.getBufferPool().transactionComplete(reader);
+        assertEquals(1000, scan());
+    }
+
+    /**
+     * The COPY statement loads a CSV file through the parser.
+     */
+    @Test public void copyStatement() throws Exception {
+        File in = File.createTempFile("bulk", ".csv");
+        in.deleteOnExit();
+        FileWriter w = new FileWriter(in);
+        w.write(csv(1234, '|'));
+        w.close();
+
+        Parser p = new Parser();
+        p.processNextStatement("COPY bulkload FROM '" + in.getPath() + "' DELIMITER '|';");
+        assertEquals(1234, scan());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    private File file;
+    private CompressedHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("compressed", ".dat");
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + ".idx").deleteOnExit();
+        hf = new CompressedHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Pages written through the buffer pool are stored compressed and read
+     * back intact, also after the file is reopened from its index.
+     */
+    @Test public void writeAndReopen() throws Exception {
+        TransactionId tid = new TransactionId();
+        int rows = 504 * 3 + 10;
+        for (int i = 0; i < rows; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i % 10, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, hf.numPages());
+        assertTrue(hf.getCompressionRatio() > 4);
+        assertTrue(file.length() < hf.getUncompressedSize() / 4);
+        assertEquals(4 * CompressedHeapFile.INDEX_ENTRY_SIZE, hf.getIndexFile().length());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        CompressedHeapFile reopened = new CompressedHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(4, reopened.numPages());
+
+        // random access to the last page goes straight through the index
+        HeapPage last = (HeapPage) reopened.readPage(new HeapPageId(reopened.getId(), 3));
+        assertEquals(504 - 10, last.getNumEmptySlots());
+        assertEquals(1, reopened.getPagesRead());
+
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(count % 10, ((IntField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(rows, count);
+    }
+
+    /**
+     * A page that no longer fits in the space reserved for it moves to the
+     * end of the data file; other pages stay where they are.
+     */
+    @Test public void growingPageMoves() throws Exception {
+        HeapPageId pid0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId pid1 = new HeapPageId(hf.getId(), 1);
+        hf.writePage(new HeapPage(pid0, HeapPage.createEmptyPageData()));
+        hf.writePage(new HeapPage(pid1, HeapPage.createEmptyPageData()));
+        long before = hf.getFileSize();
+
+        HeapPage page = new HeapPage(pid0, HeapPage.createEmptyPageData());
+        java.util.Random rand = new java.util.Random(42);
+        for (int i = 0; i < 300; i++)
+            page.insertTuple(Utility.getHeapTuple(new int[] { rand.nextInt(), rand.nextInt() }));
+        hf.writePage(page);
+        assertTrue(hf.getFileSize() > before);
+
+        HeapPage read = (HeapPage) hf.readPage(pid0);
+        assertTrue(java.util.Arrays.equals(page.getPageData(), read.getPageData()));
+        read = (HeapPage) hf.readPage(pid1);
+        assertEquals(504, read.getNumEmptySlots());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
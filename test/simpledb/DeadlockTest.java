@@ -98,7 +98,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
             Thread.sleep(POLL_INTERVAL);
 
             assertFalse(lg1Write.acquired() && lg2Write.acquired());
-            if (!lg1Write.acquired() && !lg2Write.acquired()) break;
+            if (lg1Write.acquired() && !lg2Write.acquired()) break;
             if (!lg1Write.acquired() && lg2Write.acquired()) break;
 
             if (lg1Write.getError() != null) {
@@ -149,7 +149,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
             Thread.sleep(POLL_INTERVAL);
 
             assertFalse(lg1Write1.acquired() && lg2Write0.acquired());
-            if (!lg1Write1.acquired() && !lg2Write0.acquired()) break;
+            if (lg1Write1.acquired() && !lg2Write0.acquired()) break;
             if (!lg1Write1.acquired() && lg2Write0.acquired()) break;
 
             if (lg1Write1.getError() != null) {
@@ -121,6 +121,46 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for MappedHeapFile.readPage(), including a page appended
+     * after the file was first mapped
+     */
+    @Test
+    public void mappedReadPage() throws Exception {
+        MappedHeapFile mhf = new MappedHeapFile(hf.getFile(), td);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        assertArrayEquals(hf.readPage(pid).getPageData(), mhf.readPage(pid).getPageData());
+
+        HeapPageId npid = new HeapPageId(hf.getId(), 1);
+        HeapPage page = new HeapPage(npid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        hf.writePage(page);
+        HeapPage mapped = (HeapPage) mhf.readPage(npid);
+        assertEquals(new IntField(42), mapped.iterator().next().getField(0));
+        assertArrayEquals(page.getPageData(), mapped.getPageData());
+    }
+
+    /**
+     * A tuple read from a mapped page keeps its fields after its slot is
+     * reused by another row and the page is written back to the file
+     */
+    @Test
+    public void mappedTupleSurvivesSlotReuse() throws Exception {
+        MappedHeapFile mhf = new MappedHeapFile(hf.getFile(), td);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage mapped = (HeapPage) mhf.readPage(pid);
+        Tuple first = mapped.iterator().next();
+        int value = ((IntField) ((HeapPage) hf.readPage(pid)).iterator().next().getField(0)).getValue();
+
+        mapped.deleteTuple(first);
+        mapped.insertTuple(Utility.getHeapTuple(value + 1, 2));
+        assertEquals(first.getRecordId(), mapped.iterator().next().getRecordId());
+        mhf.writePage(mapped);
+
+        assertEquals(new IntField(value), first.getField(0));
+        assertEquals(new IntField(value + 1), ((HeapPage) mhf.readPage(pid)).iterator().next().getField(0));
+    }
+
     /**
      * JUnit suite target
      */
@@ -43,6 +43,123 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for extent-based growth in HeapFile.insertTuple(): the file
+     * grows an extent at a time, and new pages are created in the buffer
+     * pool without being read from disk
+     */
+    @Test public void growByExtent() throws Exception {
+        empty.setExtentPages(4);
+        int pageSize = BufferPool.getPageSize();
+        long misses = Database.getBufferPool().getMissCount();
+        for (int i = 0; i < 504 * 2; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(5L * pageSize, empty.getFile().length());
+
+        // the rest of the extent is empty pages
+        HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 4));
+        assertEquals(504, page.getNumEmptySlots());
+
+        for (int i = 0; i < 504 * 3; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(5, empty.numPages());
+        assertEquals(5L * pageSize, empty.getFile().length());
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(6, empty.numPages());
+        assertEquals(9L * pageSize, empty.getFile().length());
+        assertEquals(misses, Database.getBufferPool().getMissCount());
+    }
+
+    /**
+     * Unit test for reopening a HeapFile: the unused rest of an extent is
+     * not counted as pages of the file, and is used before the file grows
+     */
+    @Test public void reopenAfterExtent() throws Exception {
+        empty.setExtentPages(4);
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < 504 + 1; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, empty.numPages());
+        assertEquals(5L * pageSize, empty.getFile().length());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), Utility.getTupleDesc(2));
+        assertEquals(2, reopened.numPages());
+        assertEquals(2, reopened.allocatePages(1, true));
+        assertEquals(3, reopened.numPages());
+        assertEquals(5L * pageSize, empty.getFile().length());
+    }
+
+    /**
+     * Unit test for the free space map used by HeapFile.insertTuple():
+     * space freed by a delete on an early page is reused, and a map rebuilt
+     * from disk sees the same free pages
+     */
+    @Test public void reuseFreedSlot() throws Exception {
+        Tuple victim = null;
+        for (int i = 0; i < 504 * 2; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 10)
+                victim = t;
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().nextPageWithSpace(0));
+
+        empty.deleteTuple(tid, victim);
+        assertEquals(0, empty.getFreeSpaceMap().nextPageWithSpace(0));
+
+        Tuple t = Utility.getHeapTuple(42, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(2, empty.numPages());
+
+        // rebuilding from disk sees a page with space once it is written out
+        empty.writePage(Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY));
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        page.deleteTuple(page.iterator().next());
+        empty.writePage(page);
+        FreeSpaceMap rebuilt = new FreeSpaceMap(empty, empty.numPages());
+        assertEquals(1, rebuilt.nextPageWithSpace(0));
+    }
+
+    /**
+     * Unit test for HeapFile.deleteTuples()
+     */
+    @Test public void deleteTuples() throws Exception {
+        java.util.ArrayList<RecordId> rids = new java.util.ArrayList<RecordId>();
+        for (int i = 0; i < 504 * 2; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i % 100 == 0)
+                rids.add(t.getRecordId());
+        }
+
+        // 11 tuples spread over two pages
+        assertEquals(2, empty.deleteTuples(tid, rids).size());
+        HeapPage p0 = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        HeapPage p1 = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(6, p0.getNumEmptySlots());
+        assertEquals(5, p1.getNumEmptySlots());
+
+        // deleting again fails, as does deleting a record of another table
+        try {
+            empty.deleteTuples(tid, rids);
+            fail("expected DbException");
+        } catch (DbException e) {
+        }
+        try {
+            empty.deleteTuple(tid, Utility.getHeapTuple(1, 2));
+            fail("expected DbException");
+        } catch (DbException e) {
+        }
+    }
+
     /**
      * JUnit suite target
      */
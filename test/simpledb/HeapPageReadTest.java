@@ -99,6 +99,38 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples are decoded only when read, and a page whose tuples were only
+     * partly decoded serializes to the bytes it was read from.
+     */
+    @Test public void lazyDecode() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) first.getField(1)).getValue());
+        assertEquals(new RecordId(pid, 0), first.getRecordId());
+        assertTrue(first == page.iterator().next());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+        // a field changed in place is written back, the rest are copied
+        first.setField(0, new IntField(7));
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Tuple t = copy.iterator().next();
+        assertEquals(7, ((IntField) t.getField(0)).getValue());
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) t.getField(1)).getValue());
+
+        // slots filled after an iterator is created are not visited by it
+        page.deleteTuple(first);
+        it = page.iterator();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(EXAMPLE_VALUES.length - 1, count);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
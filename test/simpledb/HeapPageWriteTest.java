@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -44,6 +45,28 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         assertEquals(false, dirtier != null);
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage() and setBeforeImage(): the
+     * before image is the page as read until the page is committed, and the
+     * committed contents after that.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+
+        page.deleteTuple(page.iterator().next());
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+        assertEquals(false, Arrays.equals(committed, page.getPageData()));
+    }
+
     /**
      * Unit test for HeapPage.addTuple()
      */
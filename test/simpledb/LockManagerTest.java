@@ -0,0 +1,224 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LockManagerTest {
+    private LockManager lm;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * Entries are removed from the table once nobody holds or waits for
+     * them, whether locks are released one at a time or all at once.
+     */
+    @Test public void reclaimEntries() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.grantReadLock(tid1, p0);
+        lm.grantReadLock(tid2, p0);
+        lm.grantWriteLock(tid1, p1);
+        assertEquals(2, lm.getLockTableSize());
+
+        assertTrue(lm.releaseLock(tid1, p0));
+        assertFalse(lm.releaseLock(tid1, p0));
+        assertEquals(2, lm.getLockTableSize());
+        lm.commitTX(tid2);
+        assertEquals(1, lm.getLockTableSize());
+        assertTrue(lm.checkHoldLock(tid1, p1));
+        lm.commitTX(tid1);
+        assertEquals(0, lm.getLockTableSize());
+        assertFalse(lm.checkHoldLock(tid1, p1));
+
+        // a reclaimed page can be locked again
+        lm.grantWriteLock(tid2, p0);
+        assertTrue(lm.checkHoldLock(tid2, p0));
+        lm.commitTX(tid2);
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * Many threads sharing and releasing the same pages, with an occasional
+     * writer, never hold a conflicting lock, and leave the table empty.
+     */
+    @Test public void concurrentSharers() throws Exception {
+        final int threads = 8;
+        final int rounds = 2000;
+        final AtomicInteger readers = new AtomicInteger();
+        final AtomicInteger writers = new AtomicInteger();
+        final AtomicInteger conflicts = new AtomicInteger();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final boolean writer = t == 0;
+            Thread w = new Thread() {
+                public void run() {
+                    for (int i = 0; i < rounds; i++) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            if (writer) {
+                                lm.grantWriteLock(tid, p0);
+                                if (writers.incrementAndGet() != 1 || readers.get() != 0)
+                                    conflicts.incrementAndGet();
+                                writers.decrementAndGet();
+                            } else {
+                                lm.grantReadLock(tid, p0);
+                                readers.incrementAndGet();
+                                if (writers.get() != 0)
+                                    conflicts.incrementAndGet();
+                                readers.decrementAndGet();
+                            }
+                            lm.grantReadLock(tid, p1);
+                        } catch (TransactionAbortedException e) {
+                            conflicts.incrementAndGet();
+                        }
+                        lm.commitTX(tid);
+                    }
+                }
+            };
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers)
+            w.join();
+        assertEquals(0, conflicts.get());
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * IX holders share a page with each other but not with readers; a
+     * transaction asking for S on a page it holds IX on ends up with SIX.
+     * Records are locked apart from their pages.
+     */
+    @Test public void intentionModes() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+        lm.grantLock(tid1, p0, LockMode.IX);
+        lm.grantLock(tid2, p0, LockMode.IX);
+        assertEquals(LockMode.IX, lm.getLockMode(tid2, p0));
+        lm.setLockWaitTimeout(50);
+        try {
+            lm.grantReadLock(tid3, p0);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.commitTX(tid3);
+
+        RecordId r = new RecordId(p0, 3);
+        lm.grantLock(tid2, r, LockMode.X);
+        assertTrue(lm.checkHoldLock(tid2, r));
+        assertFalse(lm.checkHoldLock(tid1, r));
+        lm.commitTX(tid2);
+        lm.grantLock(tid1, p0, LockMode.S);
+        assertEquals(LockMode.SIX, lm.getLockMode(tid1, p0));
+        lm.commitTX(tid1);
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * Once as many transactions hold a lock in one mode as its count can
+     * hold, another must wait for one of them to leave, instead of the count
+     * overflowing into that of another mode.
+     */
+    @Test public void fullHolderCount() throws Exception {
+        Object table = LockManager.tableKey(1);
+        List<TransactionId> holders = new ArrayList<TransactionId>();
+        for (int i = 0; i < 4095; i++) {
+            TransactionId tid = new TransactionId();
+            assertTrue(lm.tryLock(tid, table, LockMode.IS));
+            holders.add(tid);
+        }
+        TransactionId late = new TransactionId();
+        assertFalse(lm.tryLock(late, table, LockMode.IS));
+        TransactionId reader = new TransactionId();
+        assertTrue(lm.tryLock(reader, table, LockMode.S));
+        lm.commitTX(reader);
+
+        lm.commitTX(holders.get(1));
+        assertTrue(lm.tryLock(late, table, LockMode.IS));
+        lm.commitTX(late);
+        for (TransactionId tid : holders)
+            lm.commitTX(tid);
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * Pages are locked under an intention lock on their table, and not at
+     * all under a table lock that covers them.
+     */
+    @Test public void tableLocks() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        Object table = LockManager.tableKey(1);
+        lm.lockPage(tid1, p0, LockMode.S);
+        lm.lockPage(tid2, p1, LockMode.X);
+        assertEquals(LockMode.IS, lm.getLockMode(tid1, table));
+        assertEquals(LockMode.IX, lm.getLockMode(tid2, table));
+        assertFalse(lm.tryLock(tid1, table, LockMode.S));
+        lm.commitTX(tid2);
+
+        assertTrue(lm.tryLock(tid1, table, LockMode.S));
+        lm.lockPage(tid1, p1, LockMode.S);
+        assertEquals(null, lm.getLockMode(tid1, p1));
+        assertTrue(lm.checkHoldLock(tid1, p1));
+        // writing a page of a table read whole takes SIX on the table
+        lm.lockPage(tid1, p1, LockMode.X);
+        assertEquals(LockMode.SIX, lm.getLockMode(tid1, table));
+        assertEquals(LockMode.X, lm.getLockMode(tid1, p1));
+        assertFalse(lm.tryLock(tid2, p1, LockMode.S));
+        lm.commitTX(tid1);
+        lm.commitTX(tid2);
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * Passing the threshold trades a transaction's page locks in a table
+     * for one table lock, unless another transaction writes the table.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.lockPage(tid2, new HeapPageId(1, 9), LockMode.S);
+        for (int i = 0; i < 4; i++)
+            lm.lockPage(tid1, new HeapPageId(1, i), LockMode.S);
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(LockMode.S, lm.getLockMode(tid1, LockManager.tableKey(1)));
+        assertEquals(null, lm.getLockMode(tid1, p0));
+        // table, and tid2's page
+        assertEquals(2, lm.getLockTableSize());
+        lm.commitTX(tid1);
+
+        lm.lockPage(tid2, p0, LockMode.X);
+        for (int i = 1; i < 5; i++)
+            lm.lockPage(tid1, new HeapPageId(2, i), LockMode.X);
+        assertEquals(LockMode.X, lm.getLockMode(tid1, LockManager.tableKey(2)));
+        for (int i = 1; i < 5; i++)
+            lm.lockPage(tid1, new HeapPageId(1, i), LockMode.S);
+        assertEquals(2, lm.getEscalationCount());
+        assertEquals(LockMode.S, lm.getLockMode(tid1, new HeapPageId(1, 4)));
+        lm.commitTX(tid1);
+        lm.commitTX(tid2);
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,339 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil.LockGrabber;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LockingTest extends TestUtil.CreateHeapFile {
+    private static final int TIMEOUT = 100;
+
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+
+    // just so we have a pointer shorter than Database.getBufferPool
+    private BufferPool bp;
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // clear all state from the buffer pool
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // create a new empty HeapFile and populate it with two pages
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 600; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+
+        this.p0 = new HeapPageId(empty.getId(), 0);
+        this.p1 = new HeapPageId(empty.getId(), 1);
+        this.tid1 = new TransactionId();
+        this.tid2 = new TransactionId();
+
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Start a thread that asks for a lock, and report whether it got it
+     * within TIMEOUT ms.
+     */
+    private LockGrabber grab(TransactionId tid, PageId pid, Permissions perm) throws Exception {
+        LockGrabber lg = new LockGrabber(tid, pid, perm);
+        lg.start();
+        lg.join(TIMEOUT);
+        return lg;
+    }
+
+    /**
+     * Two transactions can read the same page at once.
+     */
+    @Test public void sharedReaders() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+    }
+
+    /**
+     * A writer waits for readers and readers wait for a writer, until the
+     * other transaction completes.
+     */
+    @Test public void writerExcludesReaders() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        LockGrabber writer = grab(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(writer.acquired());
+        bp.transactionComplete(tid1);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired());
+
+        TransactionId tid3 = new TransactionId();
+        LockGrabber reader = grab(tid3, p0, Permissions.READ_ONLY);
+        assertFalse(reader.acquired());
+        bp.transactionComplete(tid2);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired());
+        bp.transactionComplete(tid3);
+    }
+
+    /**
+     * The only reader of a page upgrades its lock without waiting, but not
+     * while another transaction is also reading the page.
+     */
+    @Test public void upgrade() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+        bp.transactionComplete(tid1);
+
+        TransactionId tid3 = new TransactionId();
+        TransactionId tid4 = new TransactionId();
+        bp.getPage(tid3, p1, Permissions.READ_ONLY);
+        bp.getPage(tid4, p1, Permissions.READ_ONLY);
+        LockGrabber upgrader = grab(tid3, p1, Permissions.READ_WRITE);
+        assertFalse(upgrader.acquired());
+        bp.transactionComplete(tid4);
+        upgrader.join(TIMEOUT);
+        assertTrue(upgrader.acquired());
+        bp.transactionComplete(tid3);
+    }
+
+    /**
+     * Of the transactions on a deadlock, the one holding the fewest locks
+     * is aborted, even if it did not close the cycle.
+     */
+    @Test public void leastWorkVictim() throws Exception {
+        // tid1 holds two locks, tid2 one; both read p1 and then want to write it
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid1, p1, Permissions.READ_ONLY);
+        bp.getPage(tid2, p1, Permissions.READ_ONLY);
+        LockGrabber upgrade2 = grab(tid2, p1, Permissions.READ_WRITE);
+        assertFalse(upgrade2.acquired());
+        LockGrabber upgrade1 = grab(tid1, p1, Permissions.READ_WRITE);
+        upgrade2.join(TIMEOUT);
+        assertTrue(upgrade2.getError() instanceof TransactionAbortedException);
+        upgrade1.join(TIMEOUT);
+        assertTrue(upgrade1.acquired());
+        assertEquals(1, bp.getDeadlockCount());
+        bp.transactionComplete(tid1);
+    }
+
+    /**
+     * A transaction that waits longer than the lock wait timeout is aborted.
+     */
+    @Test public void lockWaitTimeout() throws Exception {
+        bp.setLockWaitTimeout(TIMEOUT);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        LockGrabber waiter = grab(tid2, p0, Permissions.READ_ONLY);
+        waiter.join(TIMEOUT * 5);
+        assertFalse(waiter.acquired());
+        assertTrue(waiter.getError() instanceof TransactionAbortedException);
+        assertEquals(1, bp.getLockTimeoutCount());
+        assertEquals(0, bp.getDeadlockCount());
+        bp.transactionComplete(tid1);
+    }
+
+    /**
+     * Under record-level locking two transactions delete rows of the same
+     * page at once, while readers of the page wait. A slot freed by a
+     * transaction that has not completed is not reused, so when it aborts
+     * its row goes back, and the other's commit writes only its own rows.
+     */
+    @Test public void recordLocks() throws Exception {
+        bp.setLockGranularity(BufferPool.LockGranularity.RECORD);
+        Iterator<Tuple> it = ((HeapPage) empty.readPage(p0)).iterator();
+        Tuple a = it.next();
+        Tuple b = it.next();
+        bp.deleteTuple(tid1, a);
+        bp.deleteTuple(tid2, b);
+        assertEquals(LockMode.IX, bp.getLockMode(tid1, p0));
+        assertTrue(bp.holdsLock(tid1, a.getRecordId()));
+        assertFalse(bp.holdsLock(tid2, a.getRecordId()));
+        TransactionId tid3 = new TransactionId();
+        LockGrabber reader = grab(tid3, p0, Permissions.READ_ONLY);
+        assertFalse(reader.acquired());
+
+        // p0 has no free slot left for tid2 to insert into
+        Tuple c = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(tid2, empty.getId(), c);
+        assertEquals(p1, c.getRecordId().getPageId());
+        assertTrue(bp.holdsLock(tid2, c.getRecordId()));
+
+        bp.transactionComplete(tid1, false);
+        assertFalse(reader.acquired());
+        bp.transactionComplete(tid2, true);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired());
+        bp.transactionComplete(tid3);
+
+        HeapPage page = (HeapPage) empty.readPage(p0);
+        assertTrue(page.isSlotUsed(a.getRecordId().tupleno()));
+        assertFalse(page.isSlotUsed(b.getRecordId().tupleno()));
+        assertTrue(((HeapPage) empty.readPage(p1)).isSlotUsed(c.getRecordId().tupleno()));
+        assertTrue(bp.getPage(tid3, p0, Permissions.READ_ONLY).isDirty() == null);
+        bp.transactionComplete(tid3);
+    }
+
+    /**
+     * A scan locks its table once instead of every page, and a writer of
+     * any page of the table waits for it.
+     */
+    @Test public void scanLocksTable() throws Exception {
+        SeqScan scan = new SeqScan(tid1, empty.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(600, count);
+        assertEquals(1, bp.getLockTableSize());
+        assertTrue(bp.holdsTableLock(tid1, empty.getId()));
+        assertTrue(bp.holdsLock(tid1, p1));
+        assertTrue(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+        LockGrabber writer = grab(tid2, p1, Permissions.READ_WRITE);
+        assertFalse(writer.acquired());
+        bp.transactionComplete(tid1);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired());
+        bp.transactionComplete(tid2);
+    }
+
+    private int scanCount(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, empty.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    private int tupleCount(TransactionId tid, PageId pid) throws Exception {
+        return tupleCount((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY));
+    }
+
+    private static int tupleCount(HeapPage page) {
+        Iterator<Tuple> it = page.iterator();
+        int count = 0;
+        for (; it.hasNext(); it.next())
+            count++;
+        return count;
+    }
+
+    /**
+     * A snapshot reader scans a page a writer holds exclusively, without
+     * locking anything, and keeps seeing what was committed when it
+     * started after the writer commits; a later snapshot sees the commit.
+     */
+    @Test public void snapshotReads() throws Exception {
+        bp.setLockWaitTimeout(TIMEOUT);
+        Tuple t = ((HeapPage) empty.readPage(p0)).iterator().next();
+        bp.deleteTuple(tid1, t);
+
+        bp.beginSnapshot(tid2);
+        assertEquals(600, scanCount(tid2));
+        assertEquals(LockMode.X, bp.getLockMode(tid1, p0));
+        assertFalse(bp.holdsTableLock(tid2, empty.getId()));
+        assertFalse(bp.holdsLock(tid2, p1));
+
+        bp.transactionComplete(tid1, true);
+        assertEquals(600, scanCount(tid2));
+        assertEquals(1, bp.getVersionCount());
+        TransactionId tid3 = new TransactionId();
+        bp.beginSnapshot(tid3);
+        assertEquals(599, scanCount(tid3));
+        try {
+            bp.getPage(tid3, p1, Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.transactionComplete(tid2);
+        bp.transactionComplete(tid3);
+        assertEquals(0, bp.getVersionCount());
+        assertEquals(0, bp.getLockTableSize());
+    }
+
+    /**
+     * Pages flushed as a writer commits are not published until its commit
+     * record is logged: a snapshot started in between does not see them.
+     */
+    @Test public void snapshotBeforeCommitRecord() throws Exception {
+        Tuple t = ((HeapPage) empty.readPage(p0)).iterator().next();
+        bp.deleteTuple(tid1, t);
+        bp.flushPages(tid1);
+
+        bp.beginSnapshot(tid2);
+        assertEquals(600, scanCount(tid2));
+        bp.endTransaction(tid1, true);
+        assertEquals(600, scanCount(tid2));
+        TransactionId tid3 = new TransactionId();
+        bp.beginSnapshot(tid3);
+        assertEquals(599, scanCount(tid3));
+
+        bp.transactionComplete(tid2);
+        bp.transactionComplete(tid3);
+    }
+
+    /**
+     * A page evicted with a writer's changes is read from disk with them,
+     * but snapshot readers still see it as committed.
+     */
+    @Test public void snapshotAfterSteal() throws Exception {
+        bp = Database.resetBufferPool(1);
+        int before = tupleCount(tid2, p0);
+        bp.transactionComplete(tid2);
+        Tuple t = ((HeapPage) empty.readPage(p0)).iterator().next();
+        bp.deleteTuple(tid1, t);
+        // evicts p0, writing tid1's delete
+        bp.getPage(tid1, p1, Permissions.READ_ONLY);
+        assertEquals(before - 1, tupleCount((HeapPage) empty.readPage(p0)));
+
+        TransactionId tid3 = new TransactionId();
+        bp.beginSnapshot(tid3);
+        assertEquals(before, tupleCount(tid3, p0));
+        bp.transactionComplete(tid1, true);
+        assertEquals(before, tupleCount(tid3, p0));
+        bp.transactionComplete(tid3);
+    }
+
+    /**
+     * A lock released early with releasePage lets a waiter in.
+     */
+    @Test public void releasePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        LockGrabber waiter = grab(tid2, p0, Permissions.READ_ONLY);
+        assertFalse(waiter.acquired());
+        bp.releasePage(tid1, p0);
+        assertFalse(bp.holdsLock(tid1, p0));
+        waiter.join(TIMEOUT);
+        assertTrue(waiter.acquired());
+    }
+}
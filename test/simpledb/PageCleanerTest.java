@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCleanerTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for PageCleaner.cleanOnce(): consecutive dirty pages are
+     * written with one call and marked clean
+     */
+    @Test
+    public void cleanOnce() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        for (int i = 0; i < 504 * 3; ++i)
+            pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(3, pool.getDirtyPages().size());
+
+        PageCleaner cleaner = new PageCleaner(pool, 1.0, 1000);
+        assertEquals(3, cleaner.cleanOnce());
+        assertEquals(3, cleaner.getPagesWritten());
+        assertEquals(1, cleaner.getWriteCalls());
+        assertEquals(1, cleaner.getBatches());
+        assertEquals(0, pool.getDirtyPages().size());
+
+        // the pages on disk now hold the inserted tuples
+        for (int i = 0; i < 3; ++i) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), i));
+            assertEquals(0, p.getNumEmptySlots());
+        }
+
+        // nothing left to do
+        assertEquals(0, cleaner.cleanOnce());
+    }
+
+    /**
+     * Unit test for PageCleaner.cleanOnce(): only enough pages to reach the
+     * clean target are written, lowest page numbers first
+     */
+    @Test
+    public void cleanToTarget() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        for (int i = 0; i < 504 * 3; ++i)
+            pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+
+        // allow 2 dirty frames out of 50
+        PageCleaner cleaner = new PageCleaner(pool, 0.96, 1000);
+        assertEquals(1, cleaner.cleanOnce());
+        assertEquals(2, pool.getDirtyPages().size());
+        HeapPage first = (HeapPage) pool.getPage(tid, new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(null, first.isDirty());
+    }
+
+    /** A heap file whose batched writes wait until they are released. */
+    private static class BlockingHeapFile extends HeapFile {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        public int writePages(List<Page> pages) throws IOException {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return super.writePages(pages);
+        }
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    /** Run r in a new thread, and return it once it ran or ms passed, if ms is positive. */
+    private static Thread start(final Action r, long ms) throws Exception {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    r.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        if (ms > 0)
+            t.join(ms);
+        return t;
+    }
+
+    /**
+     * While the cleaner writes its batch, the pool is not locked: another
+     * transaction commits. Only flushing a page of the batch waits for it.
+     */
+    @Test
+    public void writesOutsidePoolMonitor() throws Exception {
+        final BlockingHeapFile file = new BlockingHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(file, "blocking");
+        final HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        final BufferPool pool = Database.getBufferPool();
+        for (int i = 0; i < 504 * 2; ++i)
+            pool.insertTuple(tid, file.getId(), Utility.getHeapTuple(i, 2));
+
+        final PageCleaner cleaner = new PageCleaner(pool, 1.0, 1000);
+        Thread cleaning = start(new Action() {
+            public void run() throws Exception {
+                cleaner.cleanOnce();
+            }
+        }, 0);
+        assertTrue(file.writing.await(5, TimeUnit.SECONDS));
+
+        Thread flush;
+        try {
+            Thread commit = start(new Action() {
+                public void run() throws Exception {
+                    TransactionId writer = new TransactionId();
+                    pool.insertTuple(writer, other.getId(), Utility.getHeapTuple(-1, 2));
+                    pool.transactionComplete(writer);
+                }
+            }, 5000);
+            assertFalse(commit.isAlive());
+            assertEquals(2, pool.getDirtyPages().size());
+            flush = start(new Action() {
+                public void run() throws Exception {
+                    pool.flushAllPages();
+                }
+            }, 200);
+            assertTrue(flush.isAlive());
+        } finally {
+            file.release.countDown();
+        }
+        cleaning.join(5000);
+        flush.join(5000);
+        assertFalse(flush.isAlive());
+        assertEquals(2, cleaner.getPagesWritten());
+        assertEquals(0, pool.getDirtyPages().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageFrameArenaTest extends SimpleDbTestBase {
+
+    private static byte[] pageOf(int value) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static byte[] contents(ByteBuffer frame) {
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+        return data;
+    }
+
+    /**
+     * Unit test for PageFrameArena.put() and get()
+     */
+    @Test public void putGet() {
+        PageFrameArena arena = new PageFrameArena(2);
+        HeapPageId pid = new HeapPageId(-1, 0);
+        assertNull(arena.get(pid));
+
+        arena.put(pid, pageOf(7));
+        assertEquals(1, arena.size());
+        assertTrue(Arrays.equals(pageOf(7), contents(arena.get(pid))));
+
+        // overwriting a page reuses its frame
+        arena.put(pid, pageOf(9));
+        assertEquals(1, arena.size());
+        assertTrue(Arrays.equals(pageOf(9), contents(arena.get(pid))));
+    }
+
+    /**
+     * Unit test for PageFrameArena frame reuse when full
+     */
+    @Test public void reuseLeastRecentlyUsed() {
+        PageFrameArena arena = new PageFrameArena(2);
+        HeapPageId p0 = new HeapPageId(-1, 0);
+        HeapPageId p1 = new HeapPageId(-1, 1);
+        HeapPageId p2 = new HeapPageId(-1, 2);
+        arena.put(p0, pageOf(0));
+        arena.put(p1, pageOf(1));
+        arena.get(p0);
+        arena.put(p2, pageOf(2));
+
+        assertEquals(2, arena.size());
+        assertNull(arena.get(p1));
+        assertTrue(Arrays.equals(pageOf(0), contents(arena.get(p0))));
+        assertTrue(Arrays.equals(pageOf(2), contents(arena.get(p2))));
+
+        assertTrue(arena.remove(p0));
+        assertFalse(arena.remove(p0));
+        assertEquals(1, arena.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFrameArenaTest.class);
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(3)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Each field is stored in its own minipage, and pages read back the
+     * tuples written to them.
+     */
+    @Test public void columnLayout() throws Exception {
+        PaxHeapPage page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 10; i++)
+            page.insertTuple(Utility.getHeapTuple(new int[] { i, 100 + i, 200 + i }));
+        byte[] data = page.getPageData();
+
+        // same slots as a HeapPage: floor(4096 * 8 / (12 * 8 + 1)) = 337
+        int numSlots = 337;
+        int headerLen = (numSlots + 7) / 8;
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, buf.getInt(headerLen + 4 * i));
+            assertEquals(100 + i, buf.getInt(headerLen + 4 * numSlots + 4 * i));
+            assertEquals(200 + i, buf.getInt(headerLen + 8 * numSlots + 4 * i));
+        }
+
+        PaxHeapPage copy = new PaxHeapPage(pid, data);
+        assertEquals(numSlots - 10, copy.getNumEmptySlots());
+        Iterator<Tuple> it = copy.iterator(new int[] { 1 });
+        for (int i = 0; i < 10; i++) {
+            Tuple t = it.next();
+            assertEquals(100 + i, ((IntField) t.getField(1)).getValue());
+            assertEquals(200 + i, ((IntField) t.getField(2)).getValue());
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+        assertFalse(it.hasNext());
+
+        // deleting and rewriting keeps the other tuples intact
+        copy.deleteTuple(new RecordId(pid, 3));
+        copy = new PaxHeapPage(pid, copy.getPageData());
+        assertFalse(copy.isSlotUsed(3));
+        assertTrue(copy.isSlotUsed(4));
+    }
+
+    /**
+     * A SeqScan over a PAX table that reads only some columns still returns
+     * complete, correct tuples.
+     */
+    @Test public void projectedScan() throws Exception {
+        File f = File.createTempFile("pax", ".dat");
+        f.delete();
+        f.deleteOnExit();
+        PaxHeapFile hf = new PaxHeapFile(f, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        int rows = 1000;
+        for (int i = 0; i < rows; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, -i, 2 * i }));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t", new int[] { 2 });
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals(2 * id, ((IntField) t.getField(2)).getValue());
+            assertEquals(-id, ((IntField) t.getField(1)).getValue());
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(rows, count);
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxHeapPageTest.class);
+    }
+}
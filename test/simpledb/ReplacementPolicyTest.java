@@ -0,0 +1,84 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static HeapPageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: a page that is hit again gets a
+     * second chance, an untouched page does not.
+     */
+    @Test public void clockSecondChance() {
+        ClockReplacementPolicy clock = new ClockReplacementPolicy(3);
+        assertNull(clock.chooseVictim());
+        clock.pageAdded(pid(0));
+        clock.pageAdded(pid(1));
+        clock.pageAdded(pid(2));
+
+        // first sweep clears every reference bit, so page 0 goes first
+        assertEquals(pid(0), clock.chooseVictim());
+        clock.pageRemoved(pid(0));
+
+        // page 1 is hit again, so page 2 is the next victim
+        clock.pageAccessed(pid(1));
+        clock.pageAdded(pid(3));
+        assertEquals(pid(2), clock.chooseVictim());
+    }
+
+    /**
+     * Unit test for LRUKReplacementPolicy: pages referenced fewer than K
+     * times are evicted before pages with a full history.
+     */
+    @Test public void lruKScanResistance() {
+        LRUKReplacementPolicy lruk = new LRUKReplacementPolicy(4, 2);
+        assertNull(lruk.chooseVictim());
+
+        // a hot page referenced twice
+        lruk.pageAdded(pid(0));
+        lruk.pageAccessed(pid(0));
+
+        // a scan touches three pages once each, after the hot page
+        lruk.pageAdded(pid(1));
+        lruk.pageAdded(pid(2));
+        lruk.pageAdded(pid(3));
+
+        assertEquals(pid(1), lruk.chooseVictim());
+        lruk.pageRemoved(pid(1));
+        assertEquals(pid(2), lruk.chooseVictim());
+        lruk.pageRemoved(pid(2));
+        assertEquals(pid(3), lruk.chooseVictim());
+        lruk.pageRemoved(pid(3));
+        assertEquals(pid(0), lruk.chooseVictim());
+    }
+
+    /**
+     * Unit test for LRUKReplacementPolicy: history of an evicted page is
+     * retained when it is read back in.
+     */
+    @Test public void lruKRetainedHistory() {
+        LRUKReplacementPolicy lruk = new LRUKReplacementPolicy(4, 2);
+        lruk.pageAdded(pid(0));
+        lruk.pageRemoved(pid(0));
+        lruk.pageAdded(pid(1));
+        // page 0 comes back with two references, page 1 has only one
+        lruk.pageAdded(pid(0));
+        assertEquals(pid(1), lruk.chooseVictim());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
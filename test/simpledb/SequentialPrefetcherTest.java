@@ -0,0 +1,71 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SequentialPrefetcherTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+
+    private HeapFile hf;
+    private BufferPool pool;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        assertEquals(PAGES, hf.numPages());
+        pool = Database.resetBufferPool(100);
+    }
+
+    private void awaitPrefetched(long count) throws InterruptedException {
+        for (int i = 0; i < 500 && pool.getPrefetchCount() < count; i++)
+            Thread.sleep(10);
+        assertEquals(count, pool.getPrefetchCount());
+    }
+
+    /**
+     * Once a scan moves from its first page to its second, the next window
+     * of pages is read into the pool, and the scan finds them cached.
+     */
+    @Test public void readsAhead() throws Exception {
+        SequentialPrefetcher p = new SequentialPrefetcher(hf.getId(), PAGES, pool.getNumPages());
+        p.pageAccessed(0);
+        assertEquals(0, pool.getPrefetchCount());
+        p.pageAccessed(1);
+        int window = p.getWindow();
+        assertEquals(SequentialPrefetcher.MIN_WINDOW, window);
+        awaitPrefetched(window);
+
+        pool.resetStats();
+        TransactionId tid = new TransactionId();
+        for (int i = 2; i < 2 + window; i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(window, pool.getHitCount());
+        assertEquals(0, pool.getMissCount());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * A scan that consumes pages faster than they are read gets a larger
+     * window; jumping to another page starts over with the minimum.
+     */
+    @Test public void windowAdapts() throws Exception {
+        SequentialPrefetcher p = new SequentialPrefetcher(hf.getId(), PAGES, pool.getNumPages());
+        p.pageRead(10000000L);
+        for (int i = 0; i < 4; i++)
+            p.pageAccessed(i);
+        assertTrue(p.getWindow() > SequentialPrefetcher.MIN_WINDOW);
+        assertTrue(p.getWindow() <= pool.getNumPages() / 4);
+
+        p.pageAccessed(10);
+        assertEquals(SequentialPrefetcher.MIN_WINDOW, p.getWindow());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SequentialPrefetcherTest.class);
+    }
+}
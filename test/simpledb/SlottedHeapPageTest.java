@@ -0,0 +1,148 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "id", "code" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String code) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(code, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Short strings take only their own length, so many more tuples fit on
+     * a slotted page than on a fixed-length one.
+     */
+    @Test public void insertUntilFull() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, "ab" + n))) {
+            page.insertTuple(tuple(n, "ab" + n));
+            n++;
+        }
+        int fixedSlots = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        assertTrue(n > 5 * fixedSlots);
+        try {
+            page.insertTuple(tuple(n, "ab" + n));
+            assertTrue("page should be full", false);
+        } catch (DbException e) {
+            // expected
+        }
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+            assertTrue(TestUtil.compareTuples(tuple(i, "ab" + i), t));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Deleted slots are reused, and other tuples keep their record ids.
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 5; i++)
+            page.insertTuple(tuple(i, "x" + i));
+        page.deleteTuple(new RecordId(pid, 1));
+        assertFalse(page.isSlotUsed(1));
+
+        page = new SlottedHeapPage(pid, page.getPageData());
+        assertFalse(page.isSlotUsed(1));
+        assertTrue(page.isSlotUsed(4));
+        Tuple t = tuple(9, "a much longer string than before");
+        page.insertTuple(t);
+        assertEquals(new RecordId(pid, 1), t.getRecordId());
+
+        page = new SlottedHeapPage(pid, page.getPageData());
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple next = it.next();
+            ids.add(((IntField) next.getField(0)).getValue());
+            if (next.getRecordId().tupleno() == 1)
+                assertEquals("a much longer string than before", next.getField(1).toString());
+        }
+        assertEquals("[0, 9, 2, 3, 4]", ids.toString());
+    }
+
+    /**
+     * A fixed-length heap file converted with HeapFileEncoder reads back the
+     * same tuples through a SlottedHeapFile, in fewer pages.
+     */
+    @Test public void convertHeapFile() throws Exception {
+        File text = File.createTempFile("slotted", ".txt");
+        text.deleteOnExit();
+        FileWriter w = new FileWriter(text);
+        int rows = 2000;
+        for (int i = 0; i < rows; i++)
+            w.write(i + ",c" + (i % 97) + "\n");
+        w.close();
+
+        File fixed = File.createTempFile("slotted", ".dat");
+        fixed.deleteOnExit();
+        HeapFileEncoder.convert(text, fixed, BufferPool.getPageSize(), 2,
+                new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        File slotted = File.createTempFile("slotted", ".dat");
+        slotted.deleteOnExit();
+        HeapFileEncoder.convertToSlotted(fixed, slotted, TD);
+
+        HeapFile hf = new HeapFile(fixed, TD);
+        SlottedHeapFile shf = new SlottedHeapFile(slotted, TD);
+        Database.getCatalog().addTable(shf, SystemTestUtil.getUUID());
+        assertTrue(shf.numPages() * 5 < hf.numPages());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = shf.iterator(tid);
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(i, ((IntField) t.getField(0)).getValue());
+            assertEquals("c" + (i % 97), t.getField(1).toString());
+            i++;
+        }
+        it.close();
+        assertEquals(rows, i);
+
+        // inserts go through the free space map to the last page
+        int before = shf.numPages();
+        Database.getBufferPool().insertTuple(tid, shf.getId(), tuple(rows, "new"));
+        assertEquals(before, shf.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -4,6 +4,11 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
 import simpledb.*;
 
 public class DeleteTest extends FilterBase {
@@ -51,6 +56,115 @@ public class DeleteTest extends FilterBase {
         SystemTestUtil.matchTuples(table, expectedTuples);
     }
 
+    /**
+     * Passes its child's tuples through, but first waits a little for the
+     * other deletes of a test to have started reading.
+     */
+    private static class Rendezvous extends Operator {
+        private final CyclicBarrier barrier;
+        private DbIterator child;
+        private boolean met;
+
+        Rendezvous(CyclicBarrier barrier, DbIterator child) {
+            this.barrier = barrier;
+            this.child = child;
+        }
+
+        public void open() throws DbException, IOException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            child.close();
+            super.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!met) {
+                met = true;
+                try {
+                    barrier.await(500, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    // the other delete is waiting for a lock
+                }
+            }
+            return child.hasNext() ? child.next() : null;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+
+    /** Deletes the tuples of a table whose first field compares to 50 by op. */
+    private static class DeleteThread extends Thread {
+        private final HeapFile table;
+        private final Predicate.Op op;
+        private final CyclicBarrier barrier;
+        int deleted;
+        Exception error;
+
+        DeleteThread(HeapFile table, Predicate.Op op, CyclicBarrier barrier) {
+            this.table = table;
+            this.op = op;
+            this.barrier = barrier;
+        }
+
+        public void run() {
+            Transaction t = new Transaction();
+            t.start();
+            try {
+                SeqScan ss = new SeqScan(t.getId(), table.getId(), "");
+                Filter filter = new Filter(new Predicate(0, op, new IntField(50)),
+                        new Rendezvous(barrier, ss));
+                Delete delete = new Delete(t.getId(), filter);
+                delete.open();
+                deleted = ((IntField) delete.next().getField(0)).getValue();
+                delete.close();
+                t.commit();
+            } catch (Exception e) {
+                error = e;
+                try {
+                    t.abort();
+                } catch (IOException e2) {
+                    e2.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Two deletes from one table that start reading it at the same time
+     * both complete: neither is aborted to break a deadlock.
+     */
+    @Test public void concurrentDeletes() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, null);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        DeleteThread low = new DeleteThread(table, Predicate.Op.LESS_THAN, barrier);
+        DeleteThread high = new DeleteThread(table, Predicate.Op.GREATER_THAN_OR_EQ, barrier);
+        low.start();
+        high.start();
+        low.join(20000);
+        high.join(20000);
+        assertNull(low.error);
+        assertNull(high.error);
+        assertEquals(2000, low.deleted + high.deleted);
+        SystemTestUtil.matchTuples(table, new ArrayList<ArrayList<Integer>>());
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(DeleteTest.class);
@@ -428,6 +428,283 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestGroupCommit()
+            throws Exception {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(8, 50000);
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // threads committing at once share forces of the log,
+        // and what they commit survives a crash
+        final int threads = 8;
+        final int rounds = 5;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread w = new Thread() {
+                public void run() {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            t.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers)
+            w.join();
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(1 + threads * rounds, log.getCommitCount());
+        assertTrue(log.getCommitsPerSync() > 1.0);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestAsyncCommit()
+            throws Exception {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setAsyncCommitInterval(200);
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // a commit that does not wait for the log returns without
+        // forcing it; the flusher forces it soon after
+        long syncs = log.getSyncCount();
+        Transaction t1 = new Transaction();
+        t1.setSynchronousCommit(false);
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        t1.commit();
+        assertEquals(syncs, log.getSyncCount());
+        assertEquals(1, log.getAsyncCommitCount());
+        assertFalse(log.isSynced());
+        for (int i = 0; i < 100 && !log.isSynced(); i++)
+            Thread.sleep(20);
+        assertTrue(log.isSynced());
+        assertEquals(syncs + 1, log.getSyncCount());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    // count the tuples with the specified first field on a page on disk
+    int countOnDisk(HeapFile hf, int pageNo, int v1) {
+        int count = 0;
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), pageNo))).iterator();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v1)
+                count++;
+        }
+        return count;
+    }
+
+    @Test public void TestAsyncCommitCrash()
+            throws Exception {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setAsyncCommitInterval(200);
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // a commit that does not wait for the log leaves its page
+        // unwritten; the next writer of the page writes it first, after
+        // forcing its log records, so aborting that writer keeps the
+        // commit; a crash keeps commits whose pages were never written
+        Transaction t1 = new Transaction();
+        t1.setSynchronousCommit(false);
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        t1.commit();
+        assertEquals(0, countOnDisk(hf1, 0, 2));
+        Transaction t = new Transaction();
+        t.setSynchronousCommit(false);
+        t.start();
+        long lsn = Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY).getPageLSN();
+        t.commit();
+        assertTrue(lsn > log.getFlushedLSN());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3, 0);
+        assertEquals(1, countOnDisk(hf1, 0, 2));
+        assertTrue(lsn <= log.getFlushedLSN());
+        t2.abort();
+
+        Transaction t3 = new Transaction();
+        t3.setSynchronousCommit(false);
+        t3.start();
+        look(hf1, t3, 2, true);
+        look(hf1, t3, 3, false);
+        insertRow(hf1, t3, 4, 0);
+        t3.commit();
+        assertEquals(0, countOnDisk(hf1, 0, 4));
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestSlotLogging()
+            throws Exception {
+        setup();
+        LogFile log = Database.getLogFile();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a one-tuple insert logs the tuple, not images of its page,
+        // and its page is stamped with an LSN that is on disk
+        long before = log.getLogSize();
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3, 0);
+        t.commit();
+        long logged = log.getLogSize() - before;
+        assertTrue("logged " + logged + " bytes", logged * 10 < BufferPool.getPageSize());
+
+        t = new Transaction();
+        t.start();
+        Page p = Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(p.getPageLSN() > before);
+        assertTrue(p.getPageLSN() <= log.getFlushedLSN());
+        t.commit();
+    }
+
+    @Test public void TestInsertDeleteCrash()
+            throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // insert, force the page out, delete the tuple again and commit:
+        // redoing the insert at recovery must not bring the tuple back
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 30, 0);
+        Database.getBufferPool().flushAllPages();
+        SeqScan scan = new SeqScan(t.getId(), hf1.getId(), "");
+        scan.open();
+        Tuple victim = null;
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() == 30)
+                victim = tu;
+        }
+        scan.close();
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 30, false);
+        t.commit();
+    }
+
+    // commit n rows to the first page of hf
+    void fillPage(HeapFile hf, int n)
+        throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(100 + i, 2));
+        t.commit();
+        assertEquals(1, hf.numPages());
+    }
+
+    @Test public void TestAbortFreesSpace()
+            throws Exception {
+        setup();
+        fillPage(hf1, 503);
+
+        // *** Test:
+        // an insert that filled the page is rolled back from the log:
+        // the page is offered to inserters again
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 40, 0);
+        assertEquals(-1, hf1.getFreeSpaceMap().nextPageWithSpace(0));
+        abort(t);
+        assertEquals(0, hf1.getFreeSpaceMap().nextPageWithSpace(0));
+    }
+
+    @Test public void TestDeleteCrashFreesSpace()
+            throws Exception {
+        setup();
+        fillPage(hf1, 504);
+        Database.getLogFile().logCheckpoint();
+
+        // *** Test:
+        // a delete committed after the last checkpoint still frees its
+        // page's space after a crash
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf1.getId(), "");
+        scan.open();
+        Database.getBufferPool().deleteTuple(t.getId(), scan.next());
+        scan.close();
+        t.commit();
+
+        crash();
+
+        assertEquals(0, hf1.getFreeSpaceMap().nextPageWithSpace(0));
+    }
+
+    @Test public void TestCrashRedoesNewPage()
+            throws Exception {
+        setup();
+        fillPage(hf1, 504);
+
+        // *** Test:
+        // a committed insert onto a new page whose write was lost: the page
+        // is empty on disk, so not counted when the file is reopened, and
+        // redoing the insert makes it a page of the file again
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 40, 0);
+        t.commit();
+        assertEquals(2, hf1.numPages());
+        HeapPageId pid = new HeapPageId(hf1.getId(), 1);
+        hf1.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+
+        crash();
+
+        assertEquals(2, hf1.numPages());
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 40, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);